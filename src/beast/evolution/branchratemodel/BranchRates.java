@@ -0,0 +1,185 @@
+package beast.evolution.branchratemodel;
+
+/**
+ * Rates of all branches, indexed by node number, for the current and the stored state.
+ *
+ * Clock models calculate the rates once per MCMC step, in requiresRecalculation(), into
+ * a buffer nobody reads from, and then publish it through a volatile field. A published
+ * array is not written to until the next step, so tree likelihoods running in separate
+ * threads can read rates without taking locks, and never see a half updated table.
+ * This holds when rates are updated more than once between store() and restore(), like
+ * on first use followed by requiresRecalculation(): the later update goes to a third
+ * buffer, since the other two hold the published and the stored rates.
+ *
+ * Rates are written one branch at a time by set(), so a step that only changes a few
+ * branches, like most tree moves, costs time in proportion to those branches. set() also
+ * records which branches got a different rate, so tree likelihoods can limit their update
+ * to those branches instead of assuming all of them changed. This list is valid after
+ * requiresRecalculation() of the clock model returned true, and is cleared by store()
+ * and restore().
+ *
+ * Rates are kept before normalisation, with the scale factor in the last entry of the
+ * same array, so it is published along with them and applied when rates are read. A
+ * new scale factor then costs no more than a new rate of one branch, though it does
+ * change the rate of every branch, so all branches are reported as changed.
+ */
+public class BranchRates {
+	/** rates of the current state, followed by the scale factor **/
+	private volatile double [] rates;
+	/** rates of the stored state once the current state is updated, a free buffer otherwise **/
+	private double [] storedRates;
+	/** whether rates and storedRates were swapped since the last store() **/
+	private boolean swapped = false;
+	/** array set() writes to, between startUpdate() and publish() **/
+	private double [] newRates;
+	/** buffer for updates after the first since store(), when rates and storedRates are both in use **/
+	private double [] spareRates;
+
+	/** branches whose rate changed since the last store() **/
+	private int [] changedNodes;
+	private int changedNodeCount;
+	private boolean [] isChanged;
+	/** branches where the free buffer differs from the current rates **/
+	private int [] staleNodes;
+	private int staleNodeCount;
+	/** whether the scale factor changed since the last store() **/
+	private boolean scaleChanged = false;
+	/** node numbers of all branches, reported as changed when the scale factor changed **/
+	private final int [] allNodes;
+	private final int scaleIndex;
+
+	public BranchRates(final int nodeCount) {
+		scaleIndex = nodeCount;
+		rates = new double[nodeCount + 1];
+		rates[scaleIndex] = 1.0;
+		storedRates = rates.clone();
+		spareRates = rates.clone();
+		changedNodes = new int[nodeCount];
+		isChanged = new boolean[nodeCount];
+		staleNodes = new int[nodeCount];
+		allNodes = new int[nodeCount];
+		for (int i = 0; i < nodeCount; i++) {
+			allNodes[i] = i;
+		}
+	}
+
+	/** rate of the branch above node nodeNr in the current state **/
+	public double get(final int nodeNr) {
+		final double [] current = rates;
+		return current[nodeNr] * current[scaleIndex];
+	}
+
+	/** copies rates of all branches of the current state into out, indexed by node number **/
+	public void getAll(final double [] out) {
+		final double [] current = rates;
+		final double scale = current[scaleIndex];
+		for (int i = 0; i < scaleIndex; i++) {
+			out[i] = current[i] * scale;
+		}
+	}
+
+	/**
+	 * starts calculating rates of the new state, which start out as those of the
+	 * current state, and readers only get to see after publish()
+	 */
+	public void startUpdate() {
+		if (swapped) {
+			// updated before since store(), so the free buffer holds the stored state, and the
+			// published rates may be in use: start from a copy of them, as this is rare
+			final double [] current = rates;
+			System.arraycopy(current, 0, spareRates, 0, current.length);
+			newRates = spareRates;
+			return;
+		}
+		// only branches that changed in the last step differ from the current rates
+		final double [] current = rates;
+		for (int i = 0; i < staleNodeCount; i++) {
+			final int nodeNr = staleNodes[i];
+			storedRates[nodeNr] = current[nodeNr];
+		}
+		staleNodeCount = 0;
+		storedRates[scaleIndex] = current[scaleIndex];
+		newRates = storedRates;
+	}
+
+	/** sets the factor all rates of the new state are multiplied by when read **/
+	public void setScale(final double scale) {
+		if (newRates[scaleIndex] != scale) {
+			newRates[scaleIndex] = scale;
+			scaleChanged = true;
+		}
+	}
+
+	/** sets the rate of the branch above node nodeNr in the new state, before scaling **/
+	public void set(final int nodeNr, final double rate) {
+		if (newRates[nodeNr] != rate) {
+			newRates[nodeNr] = rate;
+			markChanged(nodeNr);
+		}
+	}
+
+	/** make rates set since startUpdate() the current state **/
+	public void publish() {
+		if (!swapped) {
+			storedRates = rates;
+			swapped = true;
+		} else {
+			// the rates published before are free again by the next update
+			spareRates = rates;
+		}
+		rates = newRates;
+		newRates = null;
+	}
+
+	private void markChanged(final int nodeNr) {
+		if (!isChanged[nodeNr]) {
+			isChanged[nodeNr] = true;
+			changedNodes[changedNodeCount++] = nodeNr;
+		}
+	}
+
+	/** changed branches are where the free buffer differs from the current rates after store() and restore() **/
+	private void clearChanged() {
+		if (!swapped) {
+			// not updated since the last store(), so the list is empty and the stale branches stay as they are
+			return;
+		}
+		for (int i = 0; i < changedNodeCount; i++) {
+			isChanged[changedNodes[i]] = false;
+		}
+		scaleChanged = false;
+		final int [] tmp = staleNodes;
+		staleNodes = changedNodes;
+		staleNodeCount = changedNodeCount;
+		changedNodes = tmp;
+		changedNodeCount = 0;
+	}
+
+	/** node numbers of branches with a new rate, the first getChangedNodeCount() entries are valid **/
+	public int [] getChangedNodes() {
+		return scaleChanged ? allNodes : changedNodes;
+	}
+
+	public int getChangedNodeCount() {
+		return scaleChanged ? allNodes.length : changedNodeCount;
+	}
+
+	public boolean isChanged(final int nodeNr) {
+		return scaleChanged || isChanged[nodeNr];
+	}
+
+	public void store() {
+		clearChanged();
+		swapped = false;
+	}
+
+	public void restore() {
+		clearChanged();
+		if (swapped) {
+			final double [] tmp = rates;
+			rates = storedRates;
+			storedRates = tmp;
+			swapped = false;
+		}
+	}
+}
@@ -0,0 +1,586 @@
+package beast.evolution.branchratemodel;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import beast.core.util.Log;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import beast.math.distributions.MRCAPrior;
+
+/**
+ * Maps node numbers to the clade (if any) the branch above the node belongs to.
+ *
+ * All clades are resolved from a single post-order pass over the tree. Every node
+ * records the interval of leaf ranks below it, and the position of its subtree in
+ * the post-order, so the MRCA of a clade is found by walking up from one of its taxa
+ * till the interval covers all taxa of the clade, and the nodes in the clade form
+ * a contiguous block of the post-order.
+ *
+ * After topology changes, update() only revisits the paths from moved nodes to the
+ * root and the subtrees below nodes whose clade changed, and never loops over all nodes
+ * unless it has to find the moved nodes itself. This relies on clades being
+ * monophyletic: for states that violate that, the MRCAPrior rejects the proposal anyway.
+ * Changes made by update() are journalled and undone by restore(), so the index
+ * follows the tree through the store/restore cycle at a cost proportional to the
+ * number of entries that changed.
+ */
+public class CladeIndex {
+	final Tree tree;
+	final List<MRCAPrior> clades;
+
+	/** leaf node numbers of the taxa in each clade **/
+	final int [][] cladeTaxa;
+	/** clade numbers, biggest clade first, so nested clades overwrite the clades containing them **/
+	final int [] order;
+
+	/** node numbers in post-order **/
+	int [] postOrder;
+	/** position of a node in postOrder **/
+	int [] position;
+	/** position in postOrder of the first node in the subtree below a node **/
+	int [] subtreeStart;
+	/** range of leaf ranks below a node **/
+	int [] firstLeaf, lastLeaf;
+
+	/** node number of the MRCA of each clade **/
+	int [] mrca;
+	/** clade number for each node, -1 if the node is not in any clade **/
+	int [] map;
+
+	/** parent node number for each node at the last update, -1 for the root **/
+	int [] parentNr;
+	/** number of leaves below each node **/
+	int [] leafCount;
+	/** clade number of the (innermost) clade with the node as MRCA, -1 if none **/
+	int [] mrcaClade;
+
+	/** nodes whose clade changed in the last update, and the clade they had before **/
+	int [] changedNodes, changedFrom;
+	int changedNodeCount;
+	/** marks nodes already in changedNodes, and nodes already recounted in the last update or visited by isMonophyletic() **/
+	int [] changedStamp, countStamp;
+	int stamp;
+	/** nodes recounted or marked for relabelling in the last update, in the order they were marked **/
+	int [] markedNodes;
+	int markedCount;
+	/** scratch space for nodes the tree flagged as changed **/
+	int [] dirtyNodes;
+
+	/** arrays changed by update(), by number as used in the journal **/
+	int [][] journalled;
+	final static int MAP = 0, PARENT_NR = 1, LEAF_COUNT = 2, MRCA_CLADE = 3, MRCA = 4;
+	/** array number, index and old value of every entry written since the last store() **/
+	int [] journalArray = new int[16], journalIndex = new int[16], journalValue = new int[16];
+	int journalCount = 0;
+
+	/** scratch stack for walking subtrees, and the next child to visit of each node on it in traverse() **/
+	Node [] stack;
+	int [] nextChild;
+
+	public CladeIndex(final Tree tree, final List<MRCAPrior> clades) {
+		this.tree = tree;
+		this.clades = clades;
+
+		// hash taxon names once, instead of a linear search per taxon per clade
+		String [] taxaNames = tree.getTaxaNames();
+		Map<String, Integer> taxonIndex = new HashMap<>(taxaNames.length * 2);
+		for (int i = 0; i < taxaNames.length; i++) {
+			taxonIndex.put(taxaNames[i], i);
+		}
+
+		cladeTaxa = new int[clades.size()][];
+		boolean [] isInTaxaSet = new boolean[taxaNames.length];
+		for (int i = 0; i < clades.size(); i++) {
+			MRCAPrior clade = clades.get(i);
+			if (clade.taxonsetInput.get() == null) {
+				// assume all taxa
+				cladeTaxa[i] = new int[taxaNames.length];
+				for (int k = 0; k < taxaNames.length; k++) {
+					cladeTaxa[i][k] = k;
+				}
+				continue;
+			}
+			List<String> set = clade.taxonsetInput.get().asStringList();
+			int [] taxa = new int[set.size()];
+			int k = 0;
+			for (final String sTaxon : set) {
+				final Integer iTaxon = taxonIndex.get(sTaxon);
+				if (iTaxon == null) {
+					throw new RuntimeException("Cannot find taxon " + sTaxon + " in data");
+				}
+				if (isInTaxaSet[iTaxon]) {
+					throw new RuntimeException("Taxon " + sTaxon + " is defined multiple times, while they should be unique");
+				}
+				isInTaxaSet[iTaxon] = true;
+				taxa[k++] = iTaxon;
+			}
+			for (int iTaxon : taxa) {
+				isInTaxaSet[iTaxon] = false;
+			}
+			cladeTaxa[i] = taxa;
+		}
+
+		// process in order of clade size, the biggest first
+		// this ensures nested clades will be processed correctly
+		// (the sort is stable, so equally sized clades keep their order)
+		Integer [] sorted = new Integer[clades.size()];
+		for (int i = 0; i < sorted.length; i++) {
+			sorted[i] = i;
+		}
+		Arrays.sort(sorted, (a, b) -> cladeTaxa[b].length - cladeTaxa[a].length);
+		order = new int[sorted.length];
+		for (int i = 0; i < sorted.length; i++) {
+			order[i] = sorted[i];
+		}
+
+		mrca = new int[clades.size()];
+	}
+
+	/**
+	 * number of nodes in each clade, leaving out the nodes of clades nested in it, followed by
+	 * the number of nodes that are not in any clade, when all clades are monophyletic. These
+	 * only depend on the taxa in the clades, so are known before the map is calculated.
+	 */
+	public int [] getCladeNodeCounts() {
+		final int [] counts = new int[clades.size() + 1];
+		counts[clades.size()] = tree.getNodeCount();
+		// innermost clade containing each taxon so far, clades.size() if none
+		final int [] owner = new int[tree.getLeafNodeCount()];
+		Arrays.fill(owner, clades.size());
+		for (int i : order) {
+			final int [] taxa = cladeTaxa[i];
+			// all nodes below the MRCA, or the leaf of a single taxon clade
+			final int size = (taxa.length == 1 ? 1 : 2 * taxa.length - 2);
+			counts[i] += size;
+			counts[owner[taxa[0]]] -= size;
+			for (int iTaxon : taxa) {
+				owner[iTaxon] = i;
+			}
+		}
+		return counts;
+	}
+
+	/** number of nodes that are not in any clade when all clades are monophyletic, see getCladeNodeCounts() **/
+	public int getUnconstrainedNodeCount() {
+		return getCladeNodeCounts()[clades.size()];
+	}
+
+	/** (re)calculate the map from node numbers to clade numbers from scratch **/
+	public int [] initialise() {
+		int nrOfNodes = tree.getNodeCount();
+		if (map == null || map.length != nrOfNodes) {
+			postOrder = new int[nrOfNodes];
+			position = new int[nrOfNodes];
+			subtreeStart = new int[nrOfNodes];
+			firstLeaf = new int[nrOfNodes];
+			lastLeaf = new int[nrOfNodes];
+			map = new int[nrOfNodes];
+			parentNr = new int[nrOfNodes];
+			leafCount = new int[nrOfNodes];
+			mrcaClade = new int[nrOfNodes];
+			changedNodes = new int[nrOfNodes];
+			changedFrom = new int[nrOfNodes];
+			changedStamp = new int[nrOfNodes];
+			countStamp = new int[nrOfNodes];
+			markedNodes = new int[nrOfNodes];
+			dirtyNodes = new int[nrOfNodes];
+			stack = new Node[nrOfNodes];
+			nextChild = new int[nrOfNodes];
+			journalled = new int[][] {map, parentNr, leafCount, mrcaClade, mrca};
+		}
+		traverse();
+		changedNodeCount = 0;
+		journalCount = 0;
+
+		Arrays.fill(map, -1);
+		for (int i : order) {
+			mrca[i] = findMRCA(i);
+			int start = subtreeStart[mrca[i]];
+			int end = position[mrca[i]];
+			if (start == end) {
+				// a single taxon clade only contains the branch above the leaf
+				map[mrca[i]] = i;
+			} else {
+				// the branch above the MRCA is not part of the clade
+				for (int k = start; k < end; k++) {
+					map[postOrder[k]] = i;
+				}
+			}
+		}
+
+		Arrays.fill(mrcaClade, -1);
+		for (int i : order) {
+			mrcaClade[mrca[i]] = i;
+		}
+		for (int i = 0; i < nrOfNodes; i++) {
+			final Node node = tree.getNode(i);
+			parentNr[i] = node.isRoot() ? -1 : node.getParent().getNr();
+			leafCount[i] = lastLeaf[i] - firstLeaf[i] + 1;
+		}
+		return map;
+	}
+
+	/**
+	 * Brings the map up to date after the topology changed, for nodes the tree flagged
+	 * as changed. The tree keeps no list of those, so this takes one pass over the
+	 * flags; callers that already collected them can use update(int[], int) instead.
+	 * @return number of nodes whose clade changed, see getChangedNodes()
+	 */
+	public int update() {
+		if (map == null || map.length != tree.getNodeCount()) {
+			return update(null, 0);
+		}
+		return update(dirtyNodes, collectDirtyNodes(tree, dirtyNodes));
+	}
+
+	/**
+	 * Puts numbers of the nodes the tree flagged as changed in nodeNrs, which needs
+	 * room for all nodes, so models can collect them once per step for all their users.
+	 * @return number of valid entries in nodeNrs
+	 */
+	public static int collectDirtyNodes(final Tree tree, final int [] nodeNrs) {
+		final int nodeCount = tree.getNodeCount();
+		int count = 0;
+		for (int i = 0; i < nodeCount; i++) {
+			if (tree.getNode(i).isDirty() != Tree.IS_CLEAN) {
+				nodeNrs[count++] = i;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Brings the map up to date after the topology changed or nodes were renumbered.
+	 * Only the paths from moved nodes to the root are recounted, and only subtrees
+	 * below nodes whose clade changed are relabelled, so the cost is proportional to
+	 * the changed paths rather than to the size of the tree.
+	 * @param dirtyNodes node numbers that may have a new parent, which must include
+	 * every node whose parent changed, as the tree flags them when moved
+	 * @param count number of valid entries in dirtyNodes
+	 * @return number of nodes whose clade changed, see getChangedNodes()
+	 */
+	public int update(final int [] dirtyNodes, final int count) {
+		if (map == null || map.length != tree.getNodeCount()) {
+			initialise();
+			changedNodeCount = 0;
+			for (int i = 0; i < map.length; i++) {
+				changedNodes[changedNodeCount] = i;
+				changedFrom[changedNodeCount++] = -1;
+			}
+			return changedNodeCount;
+		}
+		changedNodeCount = 0;
+		markedCount = 0;
+		stamp++;
+
+		// recount leaves on the paths to the root from nodes that got a new parent,
+		// and from their old parents, which lost a child
+		boolean moved = false;
+		for (int k = 0; k < count; k++) {
+			final int i = dirtyNodes[k];
+			final Node node = tree.getNode(i);
+			final int p = node.isRoot() ? -1 : node.getParent().getNr();
+			if (p != parentNr[i]) {
+				moved = true;
+				recount(node);
+				if (parentNr[i] >= 0) {
+					recount(tree.getNode(parentNr[i]));
+				}
+				set(PARENT_NR, i, p);
+			}
+		}
+		if (!moved) {
+			return 0;
+		}
+
+		// find the MRCAs that moved
+		boolean mrcaChanged = false;
+		for (int i = 0; i < mrca.length; i++) {
+			final int newMRCA = findMRCAFromLeafCounts(i);
+			if (newMRCA != mrca[i]) {
+				set(MRCA_CLADE, mrca[i], -1);
+				pushChildren(tree.getNode(mrca[i]));
+				set(MRCA, i, newMRCA);
+				pushChildren(tree.getNode(newMRCA));
+				mrcaChanged = true;
+			}
+		}
+		if (mrcaChanged) {
+			for (int i : order) {
+				set(MRCA_CLADE, mrca[i], i);
+			}
+		}
+
+		// relabel moved nodes, and everything below nodes whose label changed
+		for (int k = 0; k < markedCount; k++) {
+			relabel(tree.getNode(markedNodes[k]));
+		}
+
+		// drop nodes that were relabelled from a stale parent and changed back later
+		int k = 0;
+		for (int i = 0; i < changedNodeCount; i++) {
+			if (map[changedNodes[i]] != changedFrom[i]) {
+				changedNodes[k] = changedNodes[i];
+				changedFrom[k++] = changedFrom[i];
+			}
+		}
+		changedNodeCount = k;
+		return changedNodeCount;
+	}
+
+	/** node numbers of nodes whose clade changed in the last call to update() **/
+	public int [] getChangedNodes() {
+		return changedNodes;
+	}
+
+	/** clade numbers before the last call to update(), in the same order as getChangedNodes() **/
+	public int [] getChangedFrom() {
+		return changedFrom;
+	}
+
+	public int getChangedNodeCount() {
+		return changedNodeCount;
+	}
+
+	/** marks current state as the one to return to on restore() **/
+	public void store() {
+		journalCount = 0;
+	}
+
+	/** undo any update() since the last store() **/
+	public void restore() {
+		// in reverse order, so entries written more than once get their oldest value
+		for (int k = journalCount - 1; k >= 0; k--) {
+			journalled[journalArray[k]][journalIndex[k]] = journalValue[k];
+		}
+		journalCount = 0;
+	}
+
+	/** write an entry of one of the journalled arrays, remembering the old value **/
+	private void set(final int arrayNr, final int index, final int value) {
+		final int [] array = journalled[arrayNr];
+		if (array[index] != value) {
+			if (journalCount == journalIndex.length) {
+				journalArray = Arrays.copyOf(journalArray, journalCount * 2);
+				journalIndex = Arrays.copyOf(journalIndex, journalCount * 2);
+				journalValue = Arrays.copyOf(journalValue, journalCount * 2);
+			}
+			journalArray[journalCount] = arrayNr;
+			journalIndex[journalCount] = index;
+			journalValue[journalCount++] = array[index];
+			array[index] = value;
+		}
+	}
+
+	/** recalculate leaf counts from node to the root, visited nodes are marked with the current stamp **/
+	private void recount(Node node) {
+		while (node != null) {
+			final int nr = node.getNr();
+			if (node.isLeaf()) {
+				set(LEAF_COUNT, nr, 1);
+			} else {
+				int count = 0;
+				for (int i = 0; i < node.getChildCount(); i++) {
+					count += leafCount[node.getChild(i).getNr()];
+				}
+				set(LEAF_COUNT, nr, count);
+			}
+			mark(nr);
+			node = node.getParent();
+		}
+	}
+
+	/** marks children of node for relabelling **/
+	private void pushChildren(Node node) {
+		for (int i = 0; i < node.getChildCount(); i++) {
+			mark(node.getChild(i).getNr());
+		}
+		if (node.isLeaf()) {
+			mark(node.getNr());
+		}
+	}
+
+	/** adds node to the nodes to relabel, unless it is already there **/
+	private void mark(final int nr) {
+		if (countStamp[nr] != stamp) {
+			countStamp[nr] = stamp;
+			markedNodes[markedCount++] = nr;
+		}
+	}
+
+	/** walk up from the first taxon of clade i till the subtree is big enough to hold the clade **/
+	private int findMRCAFromLeafCounts(int i) {
+		final int [] taxa = cladeTaxa[i];
+		Node node = tree.getNode(taxa[0]);
+		while (leafCount[node.getNr()] < taxa.length && !node.isRoot()) {
+			node = node.getParent();
+		}
+		return node.getNr();
+	}
+
+	/** the clade a node belongs to, given the clade of its parent **/
+	private int label(Node node) {
+		final int nr = node.getNr();
+		if (node.isLeaf() && mrcaClade[nr] >= 0) {
+			// single taxon clade
+			return mrcaClade[nr];
+		}
+		if (node.isRoot()) {
+			return -1;
+		}
+		final int p = node.getParent().getNr();
+		return mrcaClade[p] >= 0 ? mrcaClade[p] : map[p];
+	}
+
+	/** relabel node, and its subtree as long as labels keep changing **/
+	private void relabel(Node node) {
+		int depth = 0;
+		stack[depth++] = node;
+		while (depth > 0) {
+			final Node n = stack[--depth];
+			final int nr = n.getNr();
+			final int newLabel = label(n);
+			if (newLabel != map[nr]) {
+				if (changedStamp[nr] != stamp) {
+					changedStamp[nr] = stamp;
+					changedNodes[changedNodeCount] = nr;
+					changedFrom[changedNodeCount++] = map[nr];
+				}
+				set(MAP, nr, newLabel);
+				for (int i = 0; i < n.getChildCount(); i++) {
+					stack[depth++] = n.getChild(i);
+				}
+			}
+		}
+	}
+
+	public int [] getMap() {
+		return map;
+	}
+
+	/** number of the node at the MRCA of clade i, as found by the last call to initialise() **/
+	public int getMRCA(int i) {
+		return mrca[i];
+	}
+
+	/**
+	 * whether clade i is monophyletic in the tree as of the last initialise() or update(), that is,
+	 * its MRCA has no leaves other than the taxa of the clade, as the MRCAPrior requires.
+	 * Only the paths from the taxa up to the MRCA are visited.
+	 */
+	public boolean isMonophyletic(int i) {
+		final int [] taxa = cladeTaxa[i];
+		final int top = mrca[i];
+		if (leafCount[top] != taxa.length) {
+			return false;
+		}
+		// the MRCA has as many leaves as the clade has taxa, so it is monophyletic if all taxa are below it
+		stamp++;
+		for (int iTaxon : taxa) {
+			Node node = tree.getNode(iTaxon);
+			while (node.getNr() != top && countStamp[node.getNr()] != stamp) {
+				countStamp[node.getNr()] = stamp;
+				if (node.isRoot()) {
+					return false;
+				}
+				node = node.getParent();
+			}
+		}
+		return true;
+	}
+
+	/** returns list of node numbers of nodes in clade i, ignoring any nested clades **/
+	public int [] getCladeNodes(int i) {
+		int start = subtreeStart[mrca[i]];
+		int end = position[mrca[i]];
+		if (start == end) {
+			return new int[]{mrca[i]};
+		}
+		return Arrays.copyOfRange(postOrder, start, end);
+	}
+
+	/**
+	 * collects numbers of the nodes in clade i, ignoring any nested clades, or of the nodes outside
+	 * all clades for i = -1, into nodes and returns how many there are. Unlike getCladeNodes() this
+	 * follows the current map down from the MRCA, so stays valid after update(), and does not allocate.
+	 */
+	public int collectCladeNodes(int i, int [] nodes) {
+		final Node top = (i < 0 ? tree.getRoot() : tree.getNode(mrca[i]));
+		int count = 0;
+		if (map[top.getNr()] == i) {
+			// the root, or the leaf of a single taxon clade
+			nodes[count++] = top.getNr();
+		}
+		int depth = 0;
+		for (int k = 0; k < top.getChildCount(); k++) {
+			stack[depth++] = top.getChild(k);
+		}
+		while (depth > 0) {
+			final Node n = stack[--depth];
+			if (map[n.getNr()] == i) {
+				nodes[count++] = n.getNr();
+				for (int k = 0; k < n.getChildCount(); k++) {
+					stack[depth++] = n.getChild(k);
+				}
+			}
+		}
+		return count;
+	}
+
+	/** iterative post-order traversal, to prevent stack overflows on caterpillar like trees **/
+	private void traverse() {
+		int depth = 0;
+		int k = 0;
+		int leafRank = 0;
+
+		stack[0] = tree.getRoot();
+		nextChild[0] = 0;
+		subtreeStart[stack[0].getNr()] = 0;
+		while (depth >= 0) {
+			final Node node = stack[depth];
+			if (nextChild[depth] < node.getChildCount()) {
+				final Node child = node.getChild(nextChild[depth]++);
+				depth++;
+				stack[depth] = child;
+				nextChild[depth] = 0;
+				subtreeStart[child.getNr()] = k;
+			} else {
+				final int nr = node.getNr();
+				if (node.isLeaf()) {
+					firstLeaf[nr] = leafRank;
+					lastLeaf[nr] = leafRank;
+					leafRank++;
+				} else {
+					firstLeaf[nr] = firstLeaf[node.getChild(0).getNr()];
+					lastLeaf[nr] = lastLeaf[node.getChild(node.getChildCount() - 1).getNr()];
+				}
+				position[nr] = k;
+				postOrder[k++] = nr;
+				depth--;
+			}
+		}
+	}
+
+	/** walk up from the first taxon of clade i till all its taxa are covered **/
+	private int findMRCA(int i) {
+		final int [] taxa = cladeTaxa[i];
+		int lo = Integer.MAX_VALUE, hi = Integer.MIN_VALUE;
+		for (int iTaxon : taxa) {
+			lo = Math.min(lo, firstLeaf[iTaxon]);
+			hi = Math.max(hi, lastLeaf[iTaxon]);
+		}
+		Node node = tree.getNode(taxa[0]);
+		while (firstLeaf[node.getNr()] > lo || lastLeaf[node.getNr()] < hi) {
+			node = node.getParent();
+		}
+		// monophyletic if the MRCA spans exactly the taxa, so no other leaves are below it
+		final int nr = node.getNr();
+		if (firstLeaf[nr] != lo || lastLeaf[nr] != hi || hi - lo + 1 != taxa.length) {
+			Log.warning.println("Clade " + clades.get(i).getID() + " is not monophyletic: using all nodes below its MRCA");
+		}
+		return nr;
+	}
+}
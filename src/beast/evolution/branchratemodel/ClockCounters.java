@@ -0,0 +1,129 @@
+package beast.evolution.branchratemodel;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import beast.core.BEASTInterface;
+
+/**
+ * Number of calls to, and nano seconds spent in, the expensive parts of a clock model,
+ * summed over the whole run, to spot wasted recalculation from the trace log through
+ * ClockCountersLogger.
+ *
+ * Counting is off unless the JVM is started with -Dmulticlock.counters=true. ENABLED is
+ * a constant, so when it is false the JIT drops the counting in start() and stop().
+ * Counters are LongAdders, so tree likelihoods in other threads triggering initialise()
+ * do not contend with the MCMC thread.
+ *
+ * Independent of counting, with -Dmulticlock.events=true the same calls emit a Flight
+ * Recorder ClockEvent, with the model ID, the number of branches touched and the cause,
+ * whenever a recording has the beast.multiclock.ClockModel event enabled, so which events
+ * are recorded, and above which duration, is up to the recording settings. That needs
+ * Java 11 or later, and is silently skipped on older JVMs. EVENTS is a constant as well,
+ * so without the property the event code is dropped too. With it but without a recording,
+ * an event costs a check of whether it is enabled, and the cause is only asked for when
+ * an event is committed.
+ * Events of a kind are not nested, and like the rest of the model state, the events in
+ * progress are not safe to use from several threads at once.
+ */
+public class ClockCounters {
+	public final static boolean ENABLED = Boolean.getBoolean("multiclock.counters");
+	/** Flight Recorder events, null if they are off or the JVM has no Flight Recorder **/
+	final static ClockRecorder RECORDER = (Boolean.getBoolean("multiclock.events") ? loadRecorder() : null);
+	/** a constant too, so without events the JIT drops the checks for them **/
+	final static boolean EVENTS = (RECORDER != null);
+
+	/** rebuilding rate tables after a distribution changed **/
+	public final static int PREPARE = 0;
+	/** calculating the normalisation factor **/
+	public final static int COMPUTE_FACTOR = 1;
+	/** setting up clade map and rates on first use, which includes a prepare() and computeFactor() **/
+	public final static int INITIALISE = 2;
+	public final static int STORE = 3;
+	public final static int RESTORE = 4;
+
+	public final static String [] NAMES = {"prepare", "computeFactor", "initialise", "store", "restore"};
+
+	/** causes of events that do not depend on which inputs changed **/
+	public final static Supplier<String> FIRST_USE = () -> "first use";
+	public final static Supplier<String> REJECTED = () -> "rejected";
+	public final static Supplier<String> NO_CAUSE = () -> null;
+
+	/** implemented by clock models that keep counters **/
+	public interface Counted {
+		ClockCounters getCounters();
+	}
+
+	private final BEASTInterface owner;
+	private final LongAdder [] counts;
+	private final LongAdder [] nanos;
+	/** event of each kind between start() and commit(), null if none is being recorded **/
+	private final ClockRecorder.Work [] events;
+
+	public ClockCounters(final BEASTInterface owner) {
+		this.owner = owner;
+		counts = new LongAdder[NAMES.length];
+		nanos = new LongAdder[NAMES.length];
+		if (ENABLED) {
+			for (int i = 0; i < NAMES.length; i++) {
+				counts[i] = new LongAdder();
+				nanos[i] = new LongAdder();
+			}
+		}
+		events = (EVENTS ? new ClockRecorder.Work[NAMES.length] : null);
+	}
+
+	private static ClockRecorder loadRecorder() {
+		try {
+			return (ClockRecorder) Class.forName("beast.evolution.branchratemodel.ClockEvent$Recorder")
+					.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			// no jdk.jfr in this JVM, or ClockEvent was not compiled
+			return null;
+		}
+	}
+
+	/** start time of an event, to be passed to stop() **/
+	public long start(final int event) {
+		if (EVENTS) {
+			events[event] = RECORDER.begin();
+		}
+		return ENABLED ? System.nanoTime() : 0;
+	}
+
+	/** ends the event, which still needs a commit() if it is being recorded **/
+	public void stop(final int event, final long start) {
+		if (ENABLED) {
+			counts[event].increment();
+			nanos[event].add(System.nanoTime() - start);
+		}
+		if (EVENTS && events[event] != null) {
+			events[event].end();
+		}
+	}
+
+	/** ends the event, and records it if a recording asks for it **/
+	public void stop(final int event, final long start, final int branches, final Supplier<String> cause) {
+		stop(event, start);
+		commit(event, branches, cause);
+	}
+
+	/** records an event ended by stop(), for when the number of branches is only known later **/
+	public void commit(final int event, final int branches, final Supplier<String> cause) {
+		if (EVENTS && events[event] != null) {
+			final ClockRecorder.Work work = events[event];
+			events[event] = null;
+			work.record(owner.getID(), NAMES[event], branches, cause);
+		}
+	}
+
+	/** number of times event happened, 0 if counting is off **/
+	public long getCount(final int event) {
+		return ENABLED ? counts[event].sum() : 0;
+	}
+
+	/** nano seconds spent in event, 0 if counting is off **/
+	public long getNanos(final int event) {
+		return ENABLED ? nanos[event].sum() : 0;
+	}
+}
@@ -0,0 +1,54 @@
+package beast.evolution.branchratemodel;
+
+import java.io.PrintStream;
+
+import beast.core.BEASTObject;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Input.Validate;
+import beast.core.Loggable;
+import beast.core.util.Log;
+
+@Description("Logs how often the expensive parts of a clock model ran, and the nano seconds spent in them, "
+		+ "summed since the start of the run. Only counts when the JVM runs with -Dmulticlock.counters=true.")
+public class ClockCountersLogger extends BEASTObject implements Loggable {
+	public Input<BranchRateModel.Base> clockInput = new Input<>("clock", "clock model to log counters of", Validate.REQUIRED);
+
+	ClockCounters counters;
+	String prefix;
+
+	@Override
+	public void initAndValidate() {
+		BranchRateModel.Base clock = clockInput.get();
+		if (!(clock instanceof ClockCounters.Counted)) {
+			throw new IllegalArgumentException("clock " + clock.getID() + " does not keep counters");
+		}
+		counters = ((ClockCounters.Counted) clock).getCounters();
+		prefix = (clock.getID() != null ? clock.getID() : "clock") + ".";
+		if (!ClockCounters.ENABLED) {
+			Log.warning.println("Clock counters are off, start with -Dmulticlock.counters=true to log them for " + prefix);
+		}
+	}
+
+	@Override
+	public void init(PrintStream out) {
+		for (String name : ClockCounters.NAMES) {
+			out.append(prefix + name + "\t");
+			out.append(prefix + name + ".nanos\t");
+		}
+	}
+
+	@Override
+	public void log(long sample, PrintStream out) {
+		for (int i = 0; i < ClockCounters.NAMES.length; i++) {
+			out.print(counters.getCount(i));
+			out.print('\t');
+			out.print(counters.getNanos(i));
+			out.print('\t');
+		}
+	}
+
+	@Override
+	public void close(PrintStream out) {
+	}
+}
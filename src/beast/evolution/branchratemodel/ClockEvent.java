@@ -0,0 +1,66 @@
+package beast.evolution.branchratemodel;
+
+import java.util.function.Supplier;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event for one of the expensive parts of a clock model, as counted by
+ * ClockCounters, so clock work shows up separately from the likelihood that triggered it.
+ *
+ * Needs Java 11 or later, and -Dmulticlock.events=true. Nothing refers to this class directly:
+ * ClockCounters loads Recorder by name, so the package still loads without jdk.jfr, and
+ * build.xml leaves this file out when the JDK has no jdk.jfr.
+ */
+@Name("beast.multiclock.ClockModel")
+@Label("Clock Model")
+@Category({"BEAST", "Clock Model"})
+@Description("Rate table rebuild, normalisation, first use setup, store or restore of a clock model")
+class ClockEvent extends Event implements ClockRecorder.Work {
+	/** checks whether any recording wants these events **/
+	private final static ClockEvent PROBE = new ClockEvent();
+
+	@Label("Model")
+	String model;
+
+	@Label("Work")
+	@Description("prepare, computeFactor, initialise, store or restore")
+	String work;
+
+	@Label("Branches")
+	@Description("Number of branches whose rate or normalisation was recalculated or restored")
+	int branches;
+
+	@Label("Cause")
+	@Description("Inputs that were dirty, or why the work was done")
+	String cause;
+
+	@Override
+	public void record(final String model, final String work, final int branches, final Supplier<String> cause) {
+		if (!shouldCommit()) {
+			// e.g. shorter than the threshold of the recording
+			return;
+		}
+		this.model = model;
+		this.work = work;
+		this.branches = branches;
+		this.cause = cause.get();
+		commit();
+	}
+
+	static class Recorder implements ClockRecorder {
+		@Override
+		public ClockRecorder.Work begin() {
+			if (!PROBE.isEnabled()) {
+				return null;
+			}
+			final ClockEvent event = new ClockEvent();
+			event.begin();
+			return event;
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package beast.evolution.branchratemodel;
+
+import java.util.function.Supplier;
+
+/**
+ * Flight Recorder events for ClockCounters, behind an interface without jdk.jfr types,
+ * so the package compiles and runs on Java 8. The implementation, ClockEvent.Recorder,
+ * is loaded by name, and build.xml leaves ClockEvent out when the JDK has no jdk.jfr.
+ */
+interface ClockRecorder {
+	/** begins an event if a recording wants clock events, returns null otherwise **/
+	Work begin();
+
+	/** event between begin() and record() **/
+	interface Work {
+		void end();
+
+		/** fills in and commits the event, if the recording wants it, e.g. given its duration **/
+		void record(String model, String work, int branches, Supplier<String> cause);
+	}
+}
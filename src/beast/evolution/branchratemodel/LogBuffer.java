@@ -0,0 +1,89 @@
+package beast.evolution.branchratemodel;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import beast.core.BEASTInterface;
+
+/**
+ * Tab separated columns for the Loggable implementation of clock models.
+ *
+ * The header is put together once, and values are collected in a StringBuilder and
+ * copied into a byte buffer that are both reused between samples. Values are formatted
+ * by Double.toString(), which allocates, but the text of every column is kept, and only
+ * values that differ from the last sample are formatted again. Between samples that are
+ * close together only a few of many clades change, so logging often creates little garbage.
+ *
+ * A buffer is used by the thread calling log(), so it is not safe to share between models.
+ */
+public class LogBuffer {
+	private final static Pattern PRIOR = Pattern.compile(".prior");
+
+	private final String header;
+	private final StringBuilder line = new StringBuilder();
+	private byte [] bytes = new byte[256];
+
+	/** value and text of each column in the last sample **/
+	private final double [] lastValues;
+	private final String [] lastTexts;
+	/** column the next add() is for **/
+	private int column = 0;
+
+	public LogBuffer(final List<String> columns) {
+		lastValues = new double[columns.size()];
+		lastTexts = new String[columns.size()];
+		StringBuilder b = new StringBuilder();
+		for (String column : columns) {
+			b.append(column).append('\t');
+		}
+		header = b.toString();
+	}
+
+	/** name of a clade in column headers, its ID without the .prior MRCAPriors usually get **/
+	public static String cladeName(final BEASTInterface clade) {
+		return PRIOR.matcher(clade.getID()).replaceAll("");
+	}
+
+	/** prefix of column headers of a clock model, its ID or, without one, that of its mean rate **/
+	public static String prefix(final BEASTInterface model, final BEASTInterface meanRate) {
+		if (model.getID() != null) {
+			return model.getID();
+		}
+		return meanRate.getID() != null ? meanRate.getID() : model.getClass().getSimpleName();
+	}
+
+	public void writeHeader(final PrintStream out) {
+		out.append(header);
+	}
+
+	/** adds value of the next column **/
+	public LogBuffer add(final double value) {
+		if (column >= lastTexts.length) {
+			// more values than columns, nothing to reuse
+			line.append(value).append('\t');
+			return this;
+		}
+		if (lastTexts[column] == null || Double.doubleToRawLongBits(value) != Double.doubleToRawLongBits(lastValues[column])) {
+			lastValues[column] = value;
+			lastTexts[column] = Double.toString(value);
+		}
+		line.append(lastTexts[column]).append('\t');
+		column++;
+		return this;
+	}
+
+	/** writes values added since the last call, as ASCII **/
+	public void writeTo(final PrintStream out) {
+		final int length = line.length();
+		if (bytes.length < length) {
+			bytes = new byte[Math.max(length, 2 * bytes.length)];
+		}
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) line.charAt(i);
+		}
+		out.write(bytes, 0, length);
+		line.setLength(0);
+		column = 0;
+	}
+}
@@ -0,0 +1,69 @@
+package beast.evolution.branchratemodel;
+
+import org.apache.commons.math.MathException;
+import org.apache.commons.math.special.Erf;
+
+/**
+ * Log-normal distribution with mean 1 in real space, parameterised by the standard
+ * deviation in log space, as used for the rates of the relaxed multi-clock models.
+ *
+ * All methods are pure functions of their arguments, so one table can be built while
+ * another is built in a different thread, and no distribution object needs to be
+ * reconfigured for every standard deviation.
+ */
+public class LogNormalImpl {
+	/** name used to identify tables of this distribution in a QuantileTableCache **/
+	static final String NAME = "lognormal";
+
+	private static final double SQRT2 = Math.sqrt(2.0);
+	private static final double LOG_SQRT_2PI = 0.5 * Math.log(2.0 * Math.PI);
+
+	private LogNormalImpl() {
+	}
+
+	/** mean in log space, such that the mean in real space is 1 **/
+	public static double logMean(final double stddev) {
+		return -0.5 * stddev * stddev;
+	}
+
+	public static double inverseCumulativeProbability(final double p, final double stddev) {
+		return Math.exp(logMean(stddev) + stddev * NormalQuantile.inverse(p));
+	}
+
+	/**
+	 * sets out[offset + i] = inverseCumulativeProbability((i + 0.5) / size, stddev) for i in [from, to), 
+	 * giving exactly the same values. The normal quantiles go through NormalQuantile's batch version, 
+	 * while Math.exp() stays scalar, since no vectorised exp gives exactly the same values.
+	 */
+	public static void inverseCumulativeProbability(final double stddev, final int size, final int from, final int to, 
+			final double [] out, final int offset) {
+		NormalQuantile.inverse(size, from, to, out, offset);
+		final double logMean = logMean(stddev);
+		for (int i = offset + from; i < offset + to; i++) {
+			out[i] = Math.exp(logMean + stddev * out[i]);
+		}
+	}
+
+	public static double cumulativeProbability(final double x, final double stddev) throws MathException {
+		if (x <= 0) {
+			return 0;
+		}
+		return 0.5 * (1.0 + Erf.erf((Math.log(x) - logMean(stddev)) / (stddev * SQRT2)));
+	}
+
+	public static double density(final double x, final double stddev) {
+		if (x <= 0) {
+			return 0;
+		}
+		return Math.exp(logDensity(x, stddev));
+	}
+
+	public static double logDensity(final double x, final double stddev) {
+		if (x <= 0) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		final double logX = Math.log(x);
+		final double z = (logX - logMean(stddev)) / stddev;
+		return -0.5 * z * z - Math.log(stddev) - LOG_SQRT_2PI - logX;
+	}
+}
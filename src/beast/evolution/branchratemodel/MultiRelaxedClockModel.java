@@ -1,288 +1,364 @@
 package beast.evolution.branchratemodel;
 
 
-import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.commons.math.MathException;
 
-import beast.core.BEASTInterface;
 import beast.core.Description;
 import beast.core.Input;
-import beast.core.Loggable;
 import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.Parameter;
 import beast.core.parameter.RealParameter;
 import beast.core.util.Log;
-import beast.evolution.tree.Node;
-import beast.evolution.tree.Tree;
-import beast.math.distributions.MRCAPrior;
 import beast.math.distributions.ParametricDistribution;
 
 @Description("Clock model that has different strict clocks for different clades, assumes clades are monophyletic")
-public class MultiRelaxedClockModel extends BranchRateModel.Base implements MultiClock, Loggable {
-    public Input<ParametricDistribution> rateDistInput = new Input<ParametricDistribution>("distr", "the distribution governing the rates among branches. Must have mean of 1. The clock.rate parameter can be used to change the mean rate.", Input.Validate.REQUIRED);
-    public Input<IntegerParameter> categoryInput = new Input<IntegerParameter>("rateCategories", "the rate categories associated with nodes in the tree for sampling of individual rates among branches.", Input.Validate.REQUIRED);
-    public Input<Tree> treeInput = new Input<Tree>("tree", "the tree this relaxed clock is associated with.", Input.Validate.REQUIRED);
-    public Input<Boolean> normalizeInput = new Input<Boolean>("normalize", "Whether to normalize the average rate (default false).", false);
+public class MultiRelaxedClockModel extends RelaxedClockBase implements MultiClock {
+    public Input<List<ParametricDistribution>> rateDistInput = new Input<>("distr", "the distribution governing the rates among branches. Must have mean of 1. The clock.rate parameter can be used to change the mean rate. "
+    		+ "Either one distribution shared by all clades, or one per clade followed by one for the rest of the tree.", new ArrayList<>(), Input.Validate.REQUIRED);
+    public Input<IntegerParameter> categoryInput = new Input<IntegerParameter>("rateCategories", "the rate categories associated with nodes in the tree for sampling of individual rates among branches.");
+    public Input<RealParameter> quantileInput = new Input<>("rateQuantiles", "the rate quantiles associated with nodes in the tree for sampling of individual rates among branches.", Input.Validate.XOR, categoryInput);
 
     
     final public Input<Integer> numberOfDiscreteRates = new Input<>("numberOfDiscreteRates", "the number of discrete rate categories to approximate the rate distribution by. A value <= 0 will cause the number of categories to be set equal to the number of branches in the tree. (default = -1)", -1);
 
-    RealParameter meanRate;
-    int [] map;
-    boolean initialised = false;
-    List<MRCAPrior> calibrations = new ArrayList<MRCAPrior>();
-
     int nrOfRates;
     
     @Override
     public void initAndValidate() {
-
-        tree = treeInput.get();
+        super.initAndValidate();
 
         categories = categoryInput.get();
+        quantiles = quantileInput.get();
         int nCategoryCount = tree.getNodeCount() - 1;
-        categories.setDimension(nCategoryCount);
-        Integer[] iCategories = new Integer[nCategoryCount];
-        nrOfRates = (numberOfDiscreteRates.get() > 0 ? numberOfDiscreteRates.get() : tree.getNodeCount() - 1);
-        for (int i = 0; i < nCategoryCount; i++) {
-            iCategories[i] = i % nrOfRates;
+        if (categories != null) {
+            categories.setDimension(nCategoryCount);
+            Integer[] iCategories = new Integer[nCategoryCount];
+            nrOfRates = (numberOfDiscreteRates.get() > 0 ? numberOfDiscreteRates.get() : tree.getNodeCount() - 1);
+            for (int i = 0; i < nCategoryCount; i++) {
+                iCategories[i] = i % nrOfRates;
+            }
+            IntegerParameter other = new IntegerParameter(iCategories);
+            categories.assignFromWithoutID(other);
+            categories.setLower(0);
+            categories.setUpper(nrOfRates - 1);
+        } else {
+            // rates come straight from the quantiles, so there is no table
+            nrOfRates = 0;
+            quantiles.setDimension(nCategoryCount);
+            Double[] initialQuantiles = new Double[nCategoryCount];
+            for (int i = 0; i < nCategoryCount; i++) {
+                initialQuantiles[i] = (i + 0.5) / nCategoryCount;
+            }
+            RealParameter other = new RealParameter(initialQuantiles);
+            quantiles.assignFromWithoutID(other);
+            quantiles.setLower(0.0);
+            quantiles.setUpper(1.0);
+            quantileRates = new double[nCategoryCount];
+            rateQuantile = new double[nCategoryCount];
+            rateGeneration = new long[nCategoryCount];
         }
-        IntegerParameter other = new IntegerParameter(iCategories);
-        categories.assignFromWithoutID(other);
-        categories.setLower(0);
-        categories.setUpper(nrOfRates - 1);
 
-        distribution = rateDistInput.get();
+        collectCalibrations();
+        
+        meanRate.setDimension(calibrations.size() + 1);
 
-        rates = new double[nrOfRates];
-        storedRates = new double[nrOfRates];
-        for (int i = 0; i < rates.length; i++) {
+        distributions = rateDistInput.get().toArray(new ParametricDistribution[0]);
+        if (distributions.length != 1 && distributions.length != calibrations.size() + 1) {
+            throw new IllegalArgumentException("Expected 1 distribution, or " + (calibrations.size() + 1) + 
+            		" (one per clade plus one for the rest of the tree), but got " + distributions.length);
+        }
+        perClade = distributions.length > 1;
+        for (ParametricDistribution distribution : distributions) {
             try {
-				rates[i] = distribution.inverseCumulativeProbability((i + 0.5) / rates.length);
+				distribution.inverseCumulativeProbability(0.5);
 			} catch (MathException e) {
 				throw new IllegalArgumentException(e);
 			}
         }
-        System.arraycopy(rates, 0, storedRates, 0, rates.length);
-        normalize = normalizeInput.get();
 
-        meanRate = meanRateInput.get();
-        if (meanRate == null) {
-            meanRate = new RealParameter("1.0");
-        }
-        
-        // pick up constraints in m_initial tree
-        for (final Object plugin : tree.getOutputs()) {
-            if (plugin instanceof MRCAPrior && !calibrations.contains(plugin) ) {
-            	if (((MRCAPrior) plugin).isMonophyleticInput.get()) {
-            		calibrations.add((MRCAPrior) plugin);
-            	} else {
-            		Log.warning.println("Calibration that is not monophyletic found " + ((BEASTInterface) plugin).getID());
-            	}
-            }
-        }
-        if (tree.m_initial.get() != null) {
-            for (final Object plugin : tree.m_initial.get().getOutputs()) {
-                if (plugin instanceof MRCAPrior && !calibrations.contains(plugin) ) {
-                	if (((MRCAPrior) plugin).isMonophyleticInput.get()) {
-                		calibrations.add((MRCAPrior) plugin);
-                	} else {
-                		Log.warning.println("Calibration that is not monophyletic found " + ((BEASTInterface) plugin).getID());
-                	}
-                }
-            }
+        // one row of rates per distribution, filled in as categories are used
+        rates = new double[distributions.length * nrOfRates];
+        calculatedIn = new long[rates.length];
+        rowGeneration = new long[distributions.length];
+        storedRates = new double[rates.length];
+        storedCalculatedIn = new long[rates.length];
+        storedRowGeneration = new long[distributions.length];
+        rowReplaced = new boolean[distributions.length];
+        replacedRows = new int[distributions.length];
+        for (int d = 0; d < distributions.length; d++) {
+            rowGeneration[d] = ++generationCount;
         }
         
-        meanRate.setDimension(calibrations.size() + 1);
-        
         for (int i = 0; i < calibrations.size(); i++) {
         	Log.info.println(meanRate.getID() + (i+1) + " = " + calibrations.get(i).getID() + " rate");
         }
     	Log.info.println(meanRate.getID() + meanRate.getDimension() + " = root rate");
         
 
-        try {
-            double mean = rateDistInput.get().getMean();
-            if (Math.abs(mean - 1.0) > 1e-6) {
-                Log.warning.println("WARNING: mean of distribution for relaxed clock model is not 1.0.");
+        for (ParametricDistribution distribution : distributions) {
+            try {
+                double mean = distribution.getMean();
+                if (Math.abs(mean - 1.0) > 1e-6) {
+                    Log.warning.println("WARNING: mean of distribution for relaxed clock model is not 1.0.");
+                }
+            } catch (RuntimeException e) {
+                // ignore
             }
-        } catch (RuntimeException e) {
-            // ignore
         }
 //        initialise = initialiseInput.get();
     }
 
-    public double getRateForBranch(Node node) {
-		if (!initialised) {
-			map = initialise(calibrations);
-			initialised = true;
-		}
-        if (node.isRoot()) {
-            // root has no rate
-            return 1;
-        }
-        if (recompute) {
-            prepare();
-            recompute = false;
-        }
-        if (renormalize) {
-            if (normalize) {
-                computeFactor();
+    @Override
+    protected double getMeanRate(int nodeNr) {
+        return meanRate.getArrayValue(map[nodeNr] >= 0 ? map[nodeNr] : calibrations.size());
+    }
+
+    @Override
+    protected boolean prepareChangesAllBranches() {
+        // with one distribution per clade, only branches in clocks with a new distribution change
+        return !perClade;
+    }
+
+    @Override
+    protected void calculateChangedBranchRates(int oldRootNr) {
+        super.calculateChangedBranchRates(oldRootNr);
+        if (perClade && rateDistributionChanged()) {
+            for (int k = 0; k < distributions.length; k++) {
+                if (distributions[k].isDirtyCalculation()) {
+                    final int count = collectClockNodes(k);
+                    for (int j = 0; j < count; j++) {
+                        setBranchRate(cladeNodes[j]);
+                    }
+                }
             }
-            renormalize = false;
         }
+    }
 
-        int nodeNumber = node.getNr();
+    /** collects the nodes of clock k into cladeNodes, those outside all clades for the root clock **/
+    private int collectClockNodes(int k) {
+        return cladeIndex.collectCladeNodes(k < calibrations.size() ? k : -1, cladeNodes);
+    }
 
-        if (nodeNumber == categories.getDimension()) {
+    @Override
+    protected double getRawBranchRate(int nodeNr) {
+        int nodeNumber = nodeNr;
+        if (nodeNumber == tree.getNodeCount() - 1) {
             // root node has nr less than #categories, so use that nr
-            nodeNumber = node.getTree().getRoot().getNr();
+            nodeNumber = tree.getRoot().getNr();
         }
-
-        int rateCategory = categories.getValue(nodeNumber);
-
-        int rateNr = (map[node.getNr()] >= 0 ? map[node.getNr()] : calibrations.size());
-        
-        return rates[rateCategory] * scaleFactor * meanRate.getValue(rateNr);
+        int rateNr = (map[nodeNr] >= 0 ? map[nodeNr] : calibrations.size());
+        return getBranchRate(rateNr, nodeNumber);
     }
 
-    // compute scale factor
+    /** 
+     * rate of the branch in clock rateNr with category or quantile nodeNumber, 
+     * before normalisation and mean rate 
+     */
+    private double getBranchRate(int rateNr, int nodeNumber) {
+        final int d = (perClade ? rateNr : 0);
+        if (categories != null) {
+            return getRate(d, categories.getNativeValue(nodeNumber));
+        }
+        final double q = quantiles.getArrayValue(nodeNumber);
+        if (rateGeneration[nodeNumber] != rowGeneration[d] || rateQuantile[nodeNumber] != q) {
+            quantileRates[nodeNumber] = getQuantile(d, q);
+            rateQuantile[nodeNumber] = q;
+            rateGeneration[nodeNumber] = rowGeneration[d];
+        }
+        return quantileRates[nodeNumber];
+    }
 
-    private void computeFactor() {
+    /** rate of category c of distribution d, calculating the quantile on first use **/
+    private double getRate(int d, int c) {
+        final int i = d * nrOfRates + c;
+        if (calculatedIn[i] != rowGeneration[d]) {
+            rates[i] = getQuantile(d, (c + 0.5) / nrOfRates);
+            calculatedIn[i] = rowGeneration[d];
+        }
+        return rates[i];
+    }
 
-        //scale mean rate to 1.0 or separate parameter
+    private double getQuantile(int d, double p) {
+        try {
+            return distributions[d].inverseCumulativeProbability(p);
+        } catch (MathException e) {
+            // distribution does not implement inverseCumulativeProbability,
+            // which should already have been caught in initAndValidate()
+            throw new RuntimeException(e);
+        }
+    }
 
-        double treeRate = 0.0;
-        double treeTime = 0.0;
+    /** whether any of the distributions changed **/
+    @Override
+    protected boolean rateDistributionChanged() {
+        for (ParametricDistribution distribution : distributions) {
+            if (distribution.isDirtyCalculation()) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        for (int i = 0; i < tree.getNodeCount(); i++) {
-            Node node = tree.getNode(i);
-            if (!node.isRoot()) {
-                int nodeNumber = node.getNr();
-                if (nodeNumber == categories.getDimension()) {
-                    // root node has nr less than #categories, so use that nr
-                    nodeNumber = node.getTree().getRoot().getNr();
+    @Override
+    protected void markDirtyBranches() {
+        if (!initialised) {
+            return;
+        }
+        if (rateDistributionChanged()) {
+            if (!perClade) {
+                normaliser.markAllDirty();
+                return;
+            }
+            // only branches in clocks with a new distribution
+            for (int k = 0; k < distributions.length; k++) {
+                if (distributions[k].isDirtyCalculation()) {
+                    normaliser.markDirty(cladeNodes, collectClockNodes(k));
+                }
+            }
+        }
+        final int branchCount = tree.getNodeCount() - 1;
+        if (tree.somethingIsDirty()) {
+            normaliser.markDirty(tree, dirtyNodes, dirtyNodeCount);
+            // per clade distributions give nodes that moved to another clade a new raw rate
+            normaliser.markDirty(cladeIndex.getChangedNodes(), cladeIndex.getChangedNodeCount());
+            // a new root changes which node uses the category of the root
+            normaliser.markDirty(branchCount);
+        }
+        Parameter.Base<?> branchParameter = (categories != null ? categories : quantiles);
+        if (branchParameter.somethingIsDirty()) {
+            int rootNr = tree.getRoot().getNr();
+            for (int i = 0; i < branchCount; i++) {
+                if (branchParameter.isDirty(i)) {
+                    normaliser.markDirty(i == rootNr ? branchCount : i);
                 }
-                int rateCategory = categories.getValue(nodeNumber);
-                treeRate += rates[rateCategory] * node.getLength();
-                treeTime += node.getLength();
-
-                //System.out.println("rates and time\t" + rates[rateCategory] + "\t" + node.getLength());
             }
         }
-        //treeRate /= treeTime;
-
-        scaleFactor = 1.0 / (treeRate / treeTime);
-
-
-        //System.out.println("scaleFactor\t\t\t\t\t" + scaleFactor);
     }
 
-
-    private void prepare() {
+    @Override
+    protected void prepare() {
 //    	if (initialise) {
 //    		initialise();
 //    		initialise = false;
 //    	}
         //System.out.println("prepare");
 
-        categories = (IntegerParameter) categoryInput.get();
-
-        distribution = rateDistInput.get();
-
-        tree = treeInput.get();
-
-        rates = new double[nrOfRates];
-        try {
-            for (int i = 0; i < rates.length; i++) {
-                rates[i] = distribution.inverseCumulativeProbability((i + 0.5) / rates.length);
+        // only distributions that changed get a new row, quantiles are calculated on first use
+        for (int d = 0; d < distributions.length; d++) {
+            if (distributions[d].isDirtyCalculation()) {
+                if (!rowReplaced[d]) {
+                    // keep the row of the stored state for restore()
+                    System.arraycopy(rates, d * nrOfRates, storedRates, d * nrOfRates, nrOfRates);
+                    System.arraycopy(calculatedIn, d * nrOfRates, storedCalculatedIn, d * nrOfRates, nrOfRates);
+                    storedRowGeneration[d] = rowGeneration[d];
+                    rowReplaced[d] = true;
+                    replacedRows[replacedCount++] = d;
+                }
+                // rates calculated for earlier distributions are recognised by their generation
+                rowGeneration[d] = ++generationCount;
             }
-        } catch (Exception e) {
-            // Exception due to distribution not having  inverseCumulativeProbability implemented.
-            // This should already been caught at initAndValidate()
-            e.printStackTrace();
-            System.exit(0);
         }
 
         //if (normalize) computeFactor();
     }
 
     @Override
-    protected boolean requiresRecalculation() {
-        recompute = false;
-        renormalize = true;
-
-//        if (treeInput.get().somethingIsDirty()) {
-//        	recompute = true;
-//            return true;
-//        }
-        // rateDistInput cannot be dirty?!?
-        if (rateDistInput.get().isDirtyCalculation()) {
-            recompute = true;
-            return true;
-        }
-        // NOT processed as trait on the tree, so DO mark as dirty
-        if (categoryInput.get().somethingIsDirty()) {
-            //recompute = true;
-            return true;
-        }
-        if (meanRate.somethingIsDirty()) {
-            return true;
-        }
+    protected boolean categoriesChanged() {
+        return (categories != null ? categories.somethingIsDirty() : quantiles.somethingIsDirty());
+    }
 
-        return recompute;
+    private void clearReplacedRows() {
+        for (int i = 0; i < replacedCount; i++) {
+            rowReplaced[replacedRows[i]] = false;
+        }
+        replacedCount = 0;
     }
 
     @Override
-    public void store() {
-        System.arraycopy(rates, 0, storedRates, 0, rates.length);
-        storedScaleFactor = scaleFactor;
-        super.store();
+    protected void storeTables() {
+        clearReplacedRows();
     }
 
     @Override
-    public void restore() {
-        double[] tmp = rates;
-        rates = storedRates;
-        storedRates = tmp;
-        scaleFactor = storedScaleFactor;
-        super.restore();
+    protected void restoreTables() {
+        // only rows of distributions that changed differ from the stored state
+        for (int i = 0; i < replacedCount; i++) {
+            int d = replacedRows[i];
+            System.arraycopy(storedRates, d * nrOfRates, rates, d * nrOfRates, nrOfRates);
+            System.arraycopy(storedCalculatedIn, d * nrOfRates, calculatedIn, d * nrOfRates, nrOfRates);
+            rowGeneration[d] = storedRowGeneration[d];
+        }
+        clearReplacedRows();
     }
 
-    ParametricDistribution distribution;
+    ParametricDistribution [] distributions;
+    /** whether each clock has its own distribution, otherwise all share the first **/
+    boolean perClade;
     IntegerParameter categories;
-    Tree tree;
-
-    private boolean normalize = false;
-    private boolean recompute = true;
-    private boolean renormalize = true;
-
+    /** per branch quantiles of the rate distribution, null if discrete rate categories are used **/
+    RealParameter quantiles;
+
+    /** 
+     * rate tables of all distributions in one array, the rate of category c of distribution d is
+     * at d * nrOfRates + c. Quantiles are calculated on first use, and are valid if calculatedIn
+     * matches the generation of the row, which changes whenever its distribution does.
+     */
     private double[] rates;
+    private long[] calculatedIn;
+    private long[] rowGeneration;
+    private long generationCount = 0;
+    /** rows of the stored state, only valid for distributions marked in rowReplaced **/
     private double[] storedRates;
-    private double scaleFactor = 1.0;
-    private double storedScaleFactor = 1.0;
+    private long[] storedCalculatedIn;
+    private long[] storedRowGeneration;
+    private boolean[] rowReplaced;
+    private int[] replacedRows;
+    private int replacedCount = 0;
 
-	@Override
-	public void init(PrintStream out) {
-		String id = meanRate.getID();
-        for (int i = 0; i < calibrations.size(); i++) {
-        	out.append(id + "." + calibrations.get(i).getID().replaceAll(".prior", "") + "\t");
+    @Override
+    protected void addDirtyInputs(StringBuilder cause) {
+        if (rateDistributionChanged()) {
+            addCause(cause, "distribution");
         }
-        out.append(id + ".root");
-	}
+        if (categories != null && categories.somethingIsDirty()) {
+            addCause(cause, "category");
+        }
+        if (quantiles != null && quantiles.somethingIsDirty()) {
+            addCause(cause, "quantile");
+        }
+    }
+
+    /** 
+     * rate of each branch from its quantile, indexed like quantiles, with the quantile and
+     * generation of the distribution it was calculated for, so only branches with a new one are recalculated
+     */
+    private double[] quantileRates;
+    private double[] rateQuantile;
+    private long[] rateGeneration;
 
+    /** columns are named after the mean rate, which holds the rates that are logged **/
+    @Override
+    protected String getLogPrefix() {
+        return meanRate.getID();
+    }
+
+	/** mean rate of every clade and of the root **/
 	@Override
-	public void log(long sample, PrintStream out) {
+	protected void addLogColumns(String prefix, List<String> columns) {
         for (int i = 0; i < calibrations.size(); i++) {
-        	out.append(meanRate.getValue(i) + "\t");
-        }		
-        out.append(meanRate.getValue(calibrations.size()) + "\t");
+        	columns.add(prefix + "." + LogBuffer.cladeName(calibrations.get(i)));
+        }
+        columns.add(prefix + ".root");
 	}
 
 	@Override
-	public void close(PrintStream out) {
+	protected void logValues(LogBuffer buffer) {
+        for (int i = 0; i <= calibrations.size(); i++) {
+        	buffer.add(meanRate.getArrayValue(i));
+        }
 	}
 
 }
@@ -1,98 +1,130 @@
 package beast.evolution.branchratemodel;
 
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
-import org.apache.commons.math.MathException;
-import org.apache.commons.math.distribution.ContinuousDistribution;
-import org.apache.commons.math.distribution.NormalDistributionImpl;
-
-import beast.core.BEASTInterface;
 import beast.core.Description;
 import beast.core.Input;
 import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.Parameter;
 import beast.core.parameter.RealParameter;
 import beast.core.util.Log;
-import beast.evolution.tree.Node;
-import beast.evolution.tree.Tree;
 import beast.math.distributions.MRCAPrior;
 
 @Description("Clock model that has different strict clocks for different clades, assumes clades are monophyletic")
-public class MultiRelaxedClockModel2 extends BranchRateModel.Base implements MultiClock {
+public class MultiRelaxedClockModel2 extends RelaxedClockBase implements MultiClock {
     //public Input<ParametricDistribution> rateDistInput = new Input<ParametricDistribution>("distr", "the distribution governing the rates among branches. Must have mean of 1. The clock.rate parameter can be used to change the mean rate.", Input.Validate.REQUIRED);
     public Input<RealParameter> stdDevInput = new Input<>("stddev", "standard deviation for log normal distribution.", Input.Validate.REQUIRED);
-    public Input<IntegerParameter> categoryInput = new Input<IntegerParameter>("rateCategories", "the rate categories associated with nodes in the tree for sampling of individual rates among branches.", Input.Validate.REQUIRED);
-    public Input<Tree> treeInput = new Input<Tree>("tree", "the tree this relaxed clock is associated with.", Input.Validate.REQUIRED);
-    public Input<Boolean> normalizeInput = new Input<Boolean>("normalize", "Whether to normalize the average rate (default false).", false);
-
-    RealParameter meanRate;
-    int [] map;
-    boolean initialised = false;
-    List<MRCAPrior> calibrations = new ArrayList<MRCAPrior>();
+    public Input<IntegerParameter> categoryInput = new Input<IntegerParameter>("rateCategories", "the rate categories associated with nodes in the tree for sampling of individual rates among branches. "
+    		+ "There is one per branch, running from 0 to numberOfDiscreteRates - 1 in every clock, and category c picks the quantile at (c + 0.5) / numberOfDiscreteRates "
+    		+ "of the rate distribution of the clock of the branch.");
+    public Input<RealParameter> quantileInput = new Input<>("rateQuantiles", "the rate quantiles associated with nodes in the tree for sampling of individual rates among branches.", Input.Validate.XOR, categoryInput);
+    public Input<Integer> numberOfDiscreteRatesInput = new Input<>("numberOfDiscreteRates", "number of discrete rate categories to approximate the rate distribution of each clock by. "
+    		+ "A value <= 0 will cause the number of categories to be set equal to the number of branches in the tree. "
+    		+ "Quantiles are calculated when first used, but every clock has room for all of them. (default = -1)", -1);
+    public Input<Integer> quantileCacheSizeInput = new Input<>("quantileCacheSize", "number of rate tables of recently visited standard deviations to keep in memory per clock (default 4)", 4);
+    public Input<Boolean> parallelTablesInput = new Input<>("parallelTables", "whether to calculate rate tables of clocks in parallel when many are rebuilt at once (default false)", false);
+    public Input<Integer> parallelThresholdInput = new Input<>("parallelThreshold", "minimum number of quantiles to calculate at once before rate tables are built in parallel (default 20000)", 20000);
 
-    LogNormalImpl distribution;
     IntegerParameter categories;
-    Tree tree;
+    /** per branch quantiles of the rate distribution, null if discrete rate categories are used **/
+    RealParameter quantiles;
+    /** number of branches, the root's category or quantile is used by the node numbered branchCount **/
+    private int branchCount;
+
+    /** number of discrete rate categories, the same for every clock **/
+    private int categoryCount;
+    /** 
+     * rate tables of all clocks in one contiguous array, the row of clock k starts at k * categoryCount,
+     * so even with many clades the tables stay close together in memory. Quantiles are calculated on 
+     * first use, and are valid if calculatedIn matches the generation of the row.
+     */
+    private double[] rates;
+    private long[] calculatedIn;
+    private long[] rowGeneration;
+    private double[] rowStddev;
+    /** number of quantiles calculated in each row, to decide whether to calculate all of the next one at once **/
+    private int[] rowCalculatedCount;
+    /** number of quantiles of each row that were copied from the cache, so saveRow() can skip rows that gained none **/
+    private int[] rowCachedCount;
+    private long generation = 0;
+    /** rows to be calculated in full by fillPendingRows(), and the number of quantiles in them **/
+    private int[] pendingRows;
+    private int pendingCount = 0;
+    private long pendingQuantiles = 0;
+    private boolean parallelTables;
+    private int parallelThreshold;
+    /** rows of the stored state, only valid for clocks marked in rowReplaced **/
+    private double[] storedRates;
+    private long[] storedCalculatedIn;
+    private long[] storedRowGeneration;
+    private double[] storedRowStddev;
+    private int[] storedRowCalculatedCount;
+    private int[] storedRowCachedCount;
+    /** clocks that got a new row since the last store(), so store() and restore() only touch those **/
+    private boolean[] rowReplaced;
+    private int[] replacedClocks;
+    private int replacedCount = 0;
+    /** recently visited tables of each clock, a cache per clock so clocks do not evict each other's tables **/
+    QuantileTableCache[] quantileTables;
+    /** table evicted from the cache of each clock, reused to avoid allocating a new one **/
+    private QuantileTable[] spareTables;
+    /** clocks whose standard deviation changed since the last prepare() **/
+    private boolean[] clockChanged;
 
-    private boolean normalize = false;
-    private boolean recompute = true;
-    private boolean renormalize = true;
-
-    private double[][] rates;
-    private double[][] storedRates;
-    private double scaleFactor = 1.0;
-    private double storedScaleFactor = 1.0;
     RealParameter stddevs;
 
+    /** 
+     * rate of each branch from its quantile, indexed like quantiles, with the quantile and
+     * standard deviation it was calculated for, so only branches with a new one are recalculated
+     */
+    private double[] quantileRates;
+    private double[] rateQuantile;
+    private double[] rateStddev;
+
     @Override
     public void initAndValidate() {
-
-        tree = treeInput.get();
-
-        distribution = new LogNormalImpl(1.0, 0.33);
-
-        normalize = normalizeInput.get();
-
-        meanRate = meanRateInput.get();
-        if (meanRate == null) {
-            meanRate = new RealParameter("1.0");
-        }
+        super.initAndValidate();
         stddevs = stdDevInput.get();
         
-        // pick up constraints in m_initial tree
-        for (final Object plugin : tree.getOutputs()) {
-            if (plugin instanceof MRCAPrior && !calibrations.contains(plugin) ) {
-            	if (((MRCAPrior) plugin).isMonophyleticInput.get()) {
-            		calibrations.add((MRCAPrior) plugin);
-            	} else {
-            		Log.warning.println("Calibration that is not monophyletic found " + ((BEASTInterface) plugin).getID());
-            	}
-            }
-        }
-        if (tree.m_initial.get() != null) {
-            for (final Object plugin : tree.m_initial.get().getOutputs()) {
-                if (plugin instanceof MRCAPrior && !calibrations.contains(plugin) ) {
-                	if (((MRCAPrior) plugin).isMonophyleticInput.get()) {
-                		calibrations.add((MRCAPrior) plugin);
-                	} else {
-                		Log.warning.println("Calibration that is not monophyletic found " + ((BEASTInterface) plugin).getID());
-                	}
-                }
-            }
-        }
+        collectCalibrations();
 
+        // one category or quantile per branch, the root's is used by the node numbered nodeCount - 1
+        branchCount = tree.getNodeCount() - 1;
         categories = categoryInput.get();
-        int nCategoryCount = calibrations.size() + 1; //tree.getNodeCount() - 1;
-        categories.setDimension(nCategoryCount);
-        Integer[] iCategories = new Integer[nCategoryCount];
-        for (int i = 0; i < nCategoryCount; i++) {
-            iCategories[i] = i;
+        quantiles = quantileInput.get();
+        if (categories != null) {
+            categoryCount = (numberOfDiscreteRatesInput.get() > 0 ? numberOfDiscreteRatesInput.get() : branchCount);
+            categories.setDimension(branchCount);
+            Integer[] iCategories = new Integer[branchCount];
+            for (int i = 0; i < branchCount; i++) {
+                iCategories[i] = i % categoryCount;
+            }
+            IntegerParameter other = new IntegerParameter(iCategories);
+            categories.assignFromWithoutID(other);
+            categories.setLower(0);
+            categories.setUpper(categoryCount - 1);
+        } else {
+            // rates come straight from the quantiles, so there are no tables
+            categoryCount = 0;
+            quantiles.setDimension(branchCount);
+            Double[] initialQuantiles = new Double[branchCount];
+            for (int i = 0; i < branchCount; i++) {
+                initialQuantiles[i] = (i + 0.5) / branchCount;
+            }
+            RealParameter other = new RealParameter(initialQuantiles);
+            quantiles.assignFromWithoutID(other);
+            quantiles.setLower(0.0);
+            quantiles.setUpper(1.0);
+            quantileRates = new double[branchCount];
+            rateQuantile = new double[branchCount];
+            rateStddev = new double[branchCount];
+            // nothing is calculated yet
+            Arrays.fill(rateQuantile, Double.NaN);
         }
-        IntegerParameter other = new IntegerParameter(iCategories);
-        categories.assignFromWithoutID(other);
-        categories.setLower(0);
-        categories.setUpper(categories.getDimension() - 1);
 
         
         meanRate.setDimension(calibrations.size() + 1);
@@ -103,210 +135,387 @@ public class MultiRelaxedClockModel2 extends BranchRateModel.Base implements Mul
         }
     	Log.info.println(meanRate.getID() + meanRate.getDimension() + " = root rate");
         
-        rates = new double[calibrations.size()+1][categories.getDimension()];
-        storedRates = new double[calibrations.size()+1][categories.getDimension()];
-        for (int k = 0; k < rates.length; k++) {
-	        for (int i = 0; i < rates.length; i++) {
-	            try {
-					rates[k][i] = distribution.inverseCumulativeProbability((i + 0.5) / rates.length, stddevs.getValue(k));
-				} catch (MathException e) {
-					throw new IllegalArgumentException(e);
-				}
-	        }
+        quantileTables = new QuantileTableCache[calibrations.size()+1];
+        for (int k = 0; k < quantileTables.length; k++) {
+            quantileTables[k] = new QuantileTableCache(quantileCacheSizeInput.get());
         }
-        for (int k = 0; k < rates.length; k++) {
-        	System.arraycopy(rates, 0, storedRates, 0, rates.length);
+        spareTables = new QuantileTable[calibrations.size()+1];
+        rates = new double[(calibrations.size()+1) * categoryCount;
+        calculatedIn = new long[rates.length];
+        rowGeneration = new long[calibrations.size()+1];
+        rowStddev = new double[calibrations.size()+1];
+        rowCalculatedCount = new int[calibrations.size()+1];
+        rowCachedCount = new int[calibrations.size()+1];
+        storedRates = new double[rates.length];
+        storedCalculatedIn = new long[rates.length];
+        storedRowGeneration = new long[calibrations.size()+1];
+        storedRowStddev = new double[calibrations.size()+1];
+        storedRowCalculatedCount = new int[calibrations.size()+1];
+        storedRowCachedCount = new int[calibrations.size()+1];
+        clockChanged = new boolean[calibrations.size()+1];
+        rowReplaced = new boolean[calibrations.size()+1];
+        replacedClocks = new int[calibrations.size()+1];
+        pendingRows = new int[calibrations.size()+1];
+        parallelTables = parallelTablesInput.get();
+        parallelThreshold = Math.max(parallelThresholdInput.get(), 1);
+        if (categories != null) {
+            for (int k = 0; k < calibrations.size()+1; k++) {
+                loadRow(k, stddevs.getArrayValue(k));
+            }
+            fillPendingRows();
         }
     }
 
-    public double getRateForBranch(Node node) {
-		if (!initialised) {
-			map = initialise(calibrations);
-			initialised = true;
-		}
-        if (node.isRoot()) {
-            // root has no rate
-            return 1;
-        }
-        if (recompute) {
-            prepare();
-            recompute = false;
+    @Override
+    protected double getMeanRate(int nodeNr) {
+        return meanRate.getArrayValue(map[nodeNr] >= 0 ? map[nodeNr] : calibrations.size());
+    }
+
+    @Override
+    protected boolean prepareChangesAllBranches() {
+        // only branches in clocks with a new standard deviation change
+        return false;
+    }
+
+    @Override
+    protected void calculateChangedBranchRates(int oldRootNr) {
+        super.calculateChangedBranchRates(oldRootNr);
+        if (stddevs.somethingIsDirty()) {
+            updateClockBranchRates();
         }
-        if (renormalize) {
-            if (normalize) {
-                computeFactor();
+    }
+
+    /** recalculate rates of branches in clocks marked in clockChanged **/
+    private void updateClockBranchRates() {
+        for (int k = 0; k < clockChanged.length; k++) {
+            if (clockChanged[k]) {
+                final int count = collectClockNodes(k);
+                for (int j = 0; j < count; j++) {
+                    setBranchRate(cladeNodes[j]);
+                }
             }
-            renormalize = false;
         }
+    }
 
-        int nodeNumber = node.getNr();
+    /** collects the nodes of clock k into cladeNodes, those outside all clades for the root clock **/
+    private int collectClockNodes(int k) {
+        return cladeIndex.collectCladeNodes(k < calibrations.size() ? k : -1, cladeNodes);
+    }
 
-        if (nodeNumber == categories.getDimension()) {
+    @Override
+    protected double getRawBranchRate(int nodeNr) {
+        int nodeNumber = nodeNr;
+        if (nodeNumber == branchCount) {
             // root node has nr less than #categories, so use that nr
-            nodeNumber = node.getTree().getRoot().getNr();
+            nodeNumber = tree.getRoot().getNr();
         }
-
-        int rateCategory = categories.getValue(nodeNumber);
-
-        int rateNr = (map[node.getNr()] >= 0 ? map[node.getNr()] : calibrations.size());
-        
-        return rates[rateNr][rateCategory] * scaleFactor * meanRate.getValue(rateNr);
+        int rateNr = (map[nodeNr] >= 0 ? map[nodeNr] : calibrations.size());
+        return getBranchRate(rateNr, nodeNumber);
     }
 
-    // compute scale factor
-
-    private void computeFactor() {
-
-        //scale mean rate to 1.0 or separate parameter
-
-        double treeRate = 0.0;
-        double treeTime = 0.0;
-
-        for (int i = 0; i < tree.getNodeCount(); i++) {
-            Node node = tree.getNode(i);
-            if (!node.isRoot()) {
-                int nodeNumber = node.getNr();
-                if (nodeNumber == categories.getDimension()) {
-                    // root node has nr less than #categories, so use that nr
-                    nodeNumber = node.getTree().getRoot().getNr();
+    @Override
+    protected void markDirtyBranches() {
+        if (!initialised) {
+            return;
+        }
+        if (stddevs.somethingIsDirty()) {
+            // branches in clocks with a new rate table
+            for (int k = 0; k < stddevs.getDimension(); k++) {
+                if (stddevs.isDirty(k)) {
+                    normaliser.markDirty(cladeNodes, collectClockNodes(k));
+                }
+            }
+        }
+        if (tree.somethingIsDirty()) {
+            normaliser.markDirty(tree, dirtyNodes, dirtyNodeCount);
+            normaliser.markDirty(cladeIndex.getChangedNodes(), cladeIndex.getChangedNodeCount());
+            // a new root changes which node uses the category of the root
+            normaliser.markDirty(branchCount);
+        }
+        Parameter.Base<?> branchParameter = (categories != null ? categories : quantiles);
+        if (branchParameter.somethingIsDirty()) {
+            int rootNr = tree.getRoot().getNr();
+            for (int i = 0; i < branchCount; i++) {
+                if (branchParameter.isDirty(i)) {
+                    normaliser.markDirty(i == rootNr ? branchCount : i);
                 }
-                int rateCategory = categories.getValue(nodeNumber);
-                int rateNr = (map[node.getNr()] >= 0 ? map[node.getNr()] : calibrations.size());
-                treeRate += rates[rateNr][rateCategory] * node.getLength();
-                treeTime += node.getLength();
-
-                //System.out.println("rates and time\t" + rates[rateCategory] + "\t" + node.getLength());
             }
         }
-        //treeRate /= treeTime;
-
-        scaleFactor = 1.0 / (treeRate / treeTime);
-
-
-        //System.out.println("scaleFactor\t\t\t\t\t" + scaleFactor);
     }
 
-
-    private void prepare() {
+    @Override
+    protected void prepare() {
 //    	if (initialise) {
 //    		initialise();
 //    		initialise = false;
 //    	}
         //System.out.println("prepare");
 
-        try {
-            for (int k = 0; k < rates.length; k++) {
-    	        for (int i = 0; i < rates.length; i++) {
-    	            rates[k][i] = distribution.inverseCumulativeProbability((i + 0.5) / rates.length, stddevs.getValue(k));
-    	        }
-            }
-        } catch (Exception e) {
-            // Exception due to distribution not having  inverseCumulativeProbability implemented.
-            // This should already been caught at initAndValidate()
-            e.printStackTrace();
-            System.exit(0);
+        if (categories == null) {
+            // rates of branches with a new standard deviation are recalculated from their quantile
+            return;
         }
+        // only rebuild tables of clocks with a new standard deviation
+        for (int k = 0; k < clockChanged.length; k++) {
+        	if (clockChanged[k]) {
+        		if (!rowReplaced[k]) {
+        			System.arraycopy(rates, k * categoryCount, storedRates, k * categoryCount, categoryCount);
+        			System.arraycopy(calculatedIn, k * categoryCount, storedCalculatedIn, k * categoryCount, categoryCount);
+        			storedRowGeneration[k] = rowGeneration[k];
+        			storedRowStddev[k] = rowStddev[k];
+        			storedRowCalculatedCount[k] = rowCalculatedCount[k];
+        			storedRowCachedCount[k] = rowCachedCount[k];
+        			rowReplaced[k] = true;
+        			replacedClocks[replacedCount++] = k;
+        		}
+        		saveRow(k);
+        		loadRow(k, stddevs.getArrayValue(k));
+        	}
+        }
+        fillPendingRows();
 
         //if (normalize) computeFactor();
     }
 
-    @Override
-    protected boolean requiresRecalculation() {
-        recompute = false;
-        renormalize = true;
-
-//        if (treeInput.get().somethingIsDirty()) {
-//        	recompute = true;
-//            return true;
-//        }
-        // rateDistInput cannot be dirty?!?
-        if (stddevs.somethingIsDirty()) {
-            recompute = true;
-            return true;
-        }
-        // NOT processed as trait on the tree, so DO mark as dirty
-        if (categoryInput.get().somethingIsDirty()) {
-            //recompute = true;
-            return true;
-        }
-        if (meanRate.somethingIsDirty()) {
-            return true;
-        }
+    /** rate of the branch with category or quantile nodeNumber in clock k **/
+    private double getBranchRate(int k, int nodeNumber) {
+    	if (categories != null) {
+    		return getRate(k, categories.getNativeValue(nodeNumber));
+    	}
+    	final double q = quantiles.getArrayValue(nodeNumber);
+    	final double stddev = stddevs.getArrayValue(k);
+    	if (rateQuantile[nodeNumber] != q || rateStddev[nodeNumber] != stddev) {
+    		quantileRates[nodeNumber] = LogNormalImpl.inverseCumulativeProbability(q, stddev);
+    		rateQuantile[nodeNumber] = q;
+    		rateStddev[nodeNumber] = stddev;
+    	}
+    	return quantileRates[nodeNumber];
+    }
 
-        return recompute;
+    /** rate of category c of clock k, calculating the quantile on first use **/
+    private double getRate(int k, int c) {
+    	final int i = k * categoryCount + c;
+    	if (calculatedIn[i] != rowGeneration[k]) {
+    		rates[i] = LogNormalImpl.inverseCumulativeProbability((c + 0.5) / categoryCount, rowStddev[k]);
+    		calculatedIn[i] = rowGeneration[k];
+    		rowCalculatedCount[k]++;
+    	}
+    	return rates[i];
     }
 
-    @Override
-    public void store() {
-        for (int k = 0; k < rates.length; k++) {
-        	System.arraycopy(rates, 0, storedRates, 0, rates.length);
-        }
-        storedScaleFactor = scaleFactor;
-        super.store();
+    /** 
+     * points the row of clock k at stddev, starting with the quantiles calculated for it
+     * before if stddev was visited recently. Otherwise, if most categories of the previous
+     * row were used, all quantiles are calculated at once by fillPendingRows().
+     */
+    private void loadRow(int k, double stddev) {
+    	final int offset = k * categoryCount;
+    	final int size = categoryCount;
+    	final boolean dense = 2 * rowCalculatedCount[k] >= size;
+    	rowGeneration[k] = ++generation;
+    	rowStddev[k] = stddev;
+    	rowCalculatedCount[k] = 0;
+    	final QuantileTable table = quantileTables[k].get(LogNormalImpl.NAME, stddev, size);
+    	if (table != null) {
+    		for (int c = 0; c < size; c++) {
+    			if (table.isCalculated(c)) {
+    				rates[offset + c] = table.getCalculated(c);
+    				calculatedIn[offset + c] = generation;
+    				rowCalculatedCount[k]++;
+    			}
+    		}
+    		rowCachedCount[k] = rowCalculatedCount[k];
+    		return;
+    	}
+    	rowCachedCount[k] = 0;
+    	if (dense) {
+    		// most categories were used for the previous stddev, so calculate them all in one go
+    		// by fillPendingRows(), possibly in parallel with other rows
+    		pendingRows[pendingCount++] = k;
+    		pendingQuantiles += size;
+    		Arrays.fill(calculatedIn, offset, offset + size, generation);
+    		rowCalculatedCount[k] = size;
+    	}
     }
 
-    @Override
-    public void restore() {
-        double[][] tmp = rates;
-        rates = storedRates;
-        storedRates = tmp;
-        scaleFactor = storedScaleFactor;
-        super.restore();
+    /** 
+     * calculates all quantiles of rows that were marked pending by loadRow(), spread over 
+     * the fork-join pool if there is enough work, but serially otherwise since then the 
+     * overhead of handing out tasks outweighs the gain
+     */
+    private void fillPendingRows() {
+    	if (pendingCount == 0) {
+    		return;
+    	}
+    	if (parallelTables && pendingQuantiles >= parallelThreshold) {
+    		ForkJoinPool.commonPool().invoke(new RowFill(0, pendingCount));
+    	} else {
+    		for (int i = 0; i < pendingCount; i++) {
+    			fillRow(pendingRows[i], 0, categoryCount);
+    		}
+    	}
+    	pendingCount = 0;
+    	pendingQuantiles = 0;
+    }
+
+    /** calculates quantiles of categories from up to to of the row of clock k **/
+    private void fillRow(int k, int from, int to) {
+    	LogNormalImpl.inverseCumulativeProbability(rowStddev[k], categoryCount, from, to, rates, k * categoryCount);
     }
 
+    /** 
+     * fills pending rows first up to last, or categories from up to to of a single pending row, 
+     * splitting the work until each task has at most parallelThreshold quantiles. 
+     * Tasks write to disjoint parts of rates.
+     */
+    @SuppressWarnings("serial")
+    private class RowFill extends RecursiveAction {
+    	final int first, last, from, to;
+
+    	RowFill(int first, int last) {
+    		this(first, last, 0, categoryCount);
+    	}
+
+    	RowFill(int first, int last, int from, int to) {
+    		this.first = first;
+    		this.last = last;
+    		this.from = from;
+    		this.to = to;
+    	}
+
+    	@Override
+    	protected void compute() {
+    		if (last - first > 1) {
+    			final long quantiles = (long) (last - first) * categoryCount;
+    			if (quantiles <= parallelThreshold) {
+    				for (int i = first; i < last; i++) {
+    					fillRow(pendingRows[i], 0, categoryCount);
+    				}
+    			} else {
+    				int mid = (first + last) / 2;
+    				invokeAll(new RowFill(first, mid), new RowFill(mid, last));
+    			}
+    		} else if (to - from <= parallelThreshold) {
+    			fillRow(pendingRows[first], from, to);
+    		} else {
+    			// a single large row
+    			int mid = (from + to) / 2;
+    			invokeAll(new RowFill(first, last, from, mid), new RowFill(first, last, mid, to));
+    		}
+    	}
+    }
 
-    public class LogNormalImpl implements ContinuousDistribution {
-        double m_fMean;
-        double m_fStdDev;
-        NormalDistributionImpl m_normal = new NormalDistributionImpl(0, 1);
+    /** keeps the quantiles calculated for the row of clock k in the cache, in case the chain returns to its stddev **/
+    private void saveRow(int k) {
+    	final int offset = k * categoryCount;
+    	final int size = categoryCount;
+    	if (quantileTables[k].capacity == 0 || rowCalculatedCount[k] == 0) {
+    		return;
+    	}
+    	if (rowCalculatedCount[k] == rowCachedCount[k] && quantileTables[k].contains(LogNormalImpl.NAME, rowStddev[k], size)) {
+    		// the row was copied from a table that is still cached, and no quantile was added since
+    		return;
+    	}
+    	// rows are copied out of the cache, so no state refers to the cached tables
+    	// and a table that is evicted or replaced can hold the next row of the clock
+    	QuantileTable table = spareTables[k];
+    	if (table == null) {
+    		table = new QuantileTable(size, rowStddev[k]);
+    	} else {
+    		table.reset(rowStddev[k]);
+    	}
+    	for (int c = 0; c < size; c++) {
+    		if (calculatedIn[offset + c] == rowGeneration[k]) {
+    			table.setCalculated(c, rates[offset + c]);
+    		}
+    	}
+    	spareTables[k] = quantileTables[k].put(LogNormalImpl.NAME, rowStddev[k], size, table);
+    }
 
-        public LogNormalImpl(double fMean, double fStdDev) {
-            setMeanAndStdDev(fMean, fStdDev);
-        }
+    /** for monitoring how well the cache of rate tables of clock k is sized **/
+    public QuantileTableCache getQuantileTableCache(int k) {
+    	return quantileTables[k];
+    }
 
-        void setMeanAndStdDev(double fMean, double fStdDev) {
-        	// mean in real space
-            fMean = Math.log(fMean) - (0.5 * fStdDev * fStdDev);
-            m_fMean = fMean;
-            m_fStdDev = fStdDev;
-            m_normal.setMean(fMean);
-            m_normal.setStandardDeviation(fStdDev);
+    @Override
+    protected boolean rateDistributionChanged() {
+        if (stddevs.somethingIsDirty()) {
+        	for (int k = 0; k < clockChanged.length; k++) {
+        		clockChanged[k] = stddevs.isDirty(k);
+        	}
+            return true;
         }
+        return false;
+    }
+
+    @Override
+    protected boolean categoriesChanged() {
+        return (categories != null ? categories.somethingIsDirty() : quantiles.somethingIsDirty());
+    }
 
-        @Override
-        public double cumulativeProbability(double x) throws MathException {
-            return m_normal.cumulativeProbability(Math.log(x));
+    @Override
+    protected void addDirtyInputs(StringBuilder cause) {
+        if (stddevs.somethingIsDirty()) {
+            addCause(cause, "stddev");
+        }
+        if (categories != null && categories.somethingIsDirty()) {
+            addCause(cause, "category");
+        }
+        if (quantiles != null && quantiles.somethingIsDirty()) {
+            addCause(cause, "quantile");
         }
+    }
 
-        @Override
-        public double cumulativeProbability(double x0, double x1) throws MathException {
-            return cumulativeProbability(x1) - cumulativeProbability(x0);
+    private void clearReplacedRows() {
+        for (int i = 0; i < replacedCount; i++) {
+        	rowReplaced[replacedClocks[i]] = false;
         }
+        replacedCount = 0;
+    }
+
+    @Override
+    protected void storeTables() {
+       	clearReplacedRows();
+    }
 
-        public double inverseCumulativeProbability(double p, double stddev) throws MathException {
-        	setMeanAndStdDev(1.0, stddev);
-            return Math.exp(m_normal.inverseCumulativeProbability(p));
+    @Override
+    protected void restoreTables() {
+        // only rows of clocks that got a new table differ from the stored state
+        for (int i = 0; i < replacedCount; i++) {
+        	int k = replacedClocks[i];
+        	int offset = k * categoryCount;
+        	System.arraycopy(storedRates, offset, rates, offset, categoryCount);
+        	System.arraycopy(storedCalculatedIn, offset, calculatedIn, offset, categoryCount);
+        	rowGeneration[k] = storedRowGeneration[k];
+        	rowStddev[k] = storedRowStddev[k];
+        	rowCalculatedCount[k] = storedRowCalculatedCount[k];
+        	rowCachedCount[k] = storedRowCachedCount[k];
         }
+        clearReplacedRows();
+    }
 
-        @Override
-        public double inverseCumulativeProbability(double p) throws MathException {
-            return Math.exp(m_normal.inverseCumulativeProbability(p));
+    /** mean rate and standard deviation of every clade and of the root, and the normalisation factor **/
+    @Override
+    protected void addLogColumns(String prefix, List<String> columns) {
+        for (MRCAPrior clade : calibrations) {
+            columns.add(prefix + "." + LogBuffer.cladeName(clade));
         }
-        
-        @Override
-        public double density(double fX) {
-            if( fX <= 0 ) {
-                return 0;
-            }
-            return m_normal.density(Math.log(fX)) / fX;
+        columns.add(prefix + ".root");
+        for (MRCAPrior clade : calibrations) {
+            columns.add(prefix + "." + LogBuffer.cladeName(clade) + ".stddev");
         }
+        columns.add(prefix + ".root.stddev");
+        columns.add(prefix + ".scaleFactor");
+    }
 
-        @Override
-        public double logDensity(double fX) {
-            if( fX <= 0 ) {
-                return  Double.NEGATIVE_INFINITY;
-            }
-            return m_normal.logDensity(Math.log(fX)) - Math.log(fX);
+    @Override
+    protected void logValues(LogBuffer buffer) {
+        for (int k = 0; k <= calibrations.size(); k++) {
+            buffer.add(meanRate.getArrayValue(k));
+        }
+        for (int k = 0; k <= calibrations.size(); k++) {
+            buffer.add(stddevs.getArrayValue(k));
         }
-    } // class LogNormalImpl
+        buffer.add(scaleFactor);
+    }
 }
@@ -2,313 +2,315 @@ package beast.evolution.branchratemodel;
 
 
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
-import org.apache.commons.math.MathException;
-import org.apache.commons.math.distribution.ContinuousDistribution;
-import org.apache.commons.math.distribution.NormalDistributionImpl;
-
-import beast.core.BEASTInterface;
 import beast.core.Description;
 import beast.core.Input;
 import beast.core.parameter.IntegerParameter;
 import beast.core.parameter.RealParameter;
 import beast.core.util.Log;
-import beast.evolution.tree.Node;
-import beast.evolution.tree.Tree;
 import beast.math.distributions.MRCAPrior;
 
 @Description("Clock model that is relaxed for non-constrained nodes, but has different strict clocks for different clades, "
 		+ "assumes clades are monophyletic, rates are drawn from log-normal")
-public class MultiRelaxedClockModel4 extends BranchRateModel.Base implements MultiClock {
+public class MultiRelaxedClockModel4 extends RelaxedClockBase implements MultiClock {
     public Input<RealParameter> stdDevInput = new Input<>("stddev", "standard deviation for log normal distribution.", Input.Validate.REQUIRED);
     public Input<IntegerParameter> categoryInput = new Input<IntegerParameter>("rateCategories", "the rate categories associated with nodes in the tree for sampling of individual rates among branches.", Input.Validate.REQUIRED);
-    public Input<Tree> treeInput = new Input<Tree>("tree", "the tree this relaxed clock is associated with.", Input.Validate.REQUIRED);
-    public Input<Boolean> normalizeInput = new Input<Boolean>("normalize", "Whether to normalize the average rate (default false).", false);
+    final public Input<Integer> numberOfDiscreteRates = new Input<>("numberOfDiscreteRates", "the number of discrete rate categories to approximate the rate distribution by. A value <= 0 will cause the number of categories to be set equal to the number of nodes in the tree. (default = -1)", -1);
+    public Input<Integer> quantileCacheSizeInput = new Input<>("quantileCacheSize", "number of rate tables of recently visited standard deviations to keep in memory (default 16)", 16);
 
-    RealParameter meanRate;
-    int [] map;
-    boolean initialised = false;
-    List<MRCAPrior> calibrations = new ArrayList<MRCAPrior>();
+    int nrOfRates;
 
-    LogNormalImpl distribution;
     IntegerParameter categories;
-    Tree tree;
 
-    private boolean normalize = false;
-    private boolean recompute = true;
-    private boolean renormalize = true;
+    /** rate tables are shared with the cache, so only ever get quantiles filled in, never reset while in use **/
+    private QuantileTable rates;
+    private QuantileTable storedRates;
+    QuantileTableCache quantileTables;
 
-    private double[] rates;
-    private double[] storedRates;
-    private double scaleFactor = 1.0;
-    private double storedScaleFactor = 1.0;
     RealParameter stddevs;
     
-    /** maps node number to index in categories for nodes that are not constrained **/
+    /** maps node number to index in categories for nodes that are not constrained, -1 for nodes that never had one **/
     int [] nodeMap;
+    /** 
+     * node holding each category of nodes that are not constrained, indexed by category minus the number of clades,
+     * -1 if none. A category is free when its node is in a clade, or moved on to another category, see isHeld().
+     */
+    int [] categoryNode;
+    /** node numbers, old nodeMap entries and old holders of the new category of changes since the last store(), undone in reverse order **/
+    int [] nodeMapJournalNodes, nodeMapJournalValues, nodeMapJournalHolders;
+    int nodeMapJournalCount = 0;
+    /** scratch space for categories released by nodes that moved into a clade **/
+    int [] freeCategories;
 
     @Override
     public void initAndValidate() {
-
-        tree = treeInput.get();
-
-        distribution = new LogNormalImpl(1.0, 0.33);
-
-        normalize = normalizeInput.get();
-
-        meanRate = meanRateInput.get();
-        if (meanRate == null) {
-            meanRate = new RealParameter("1.0");
-        }
+        super.initAndValidate();
         stddevs = stdDevInput.get();
-        
-        // pick up constraints in m_initial tree
-        for (final Object plugin : tree.getOutputs()) {
-            if (plugin instanceof MRCAPrior && !calibrations.contains(plugin) ) {
-            	if (((MRCAPrior) plugin).isMonophyleticInput.get()) {
-            		calibrations.add((MRCAPrior) plugin);
-            	} else {
-            		Log.warning.println("Calibration that is not monophyletic found " + ((BEASTInterface) plugin).getID());
-            	}
-            }
-        }
-        if (tree.m_initial.get() != null) {
-            for (final Object plugin : tree.m_initial.get().getOutputs()) {
-                if (plugin instanceof MRCAPrior && !calibrations.contains(plugin) ) {
-                	if (((MRCAPrior) plugin).isMonophyleticInput.get()) {
-                		calibrations.add((MRCAPrior) plugin);
-                	} else {
-                		Log.warning.println("Calibration that is not monophyletic found " + ((BEASTInterface) plugin).getID());
-                	}
-                }
-            }
-        }
+        collectCalibrations();
 
         
         nodeMap = new int[tree.getNodeCount()];
-        int [] map = initialise(calibrations);
-        int unConstrained = 0;
-        for (int i = 0 ; i < map.length; i++) {
-        	if (map[i] < 0) {
-        		nodeMap[i] = calibrations.size() + unConstrained;
-        		unConstrained++;
-        	}
-        }
-        
-        
+        nodeMapJournalNodes = new int[tree.getNodeCount()];
+        nodeMapJournalValues = new int[tree.getNodeCount()];
+        nodeMapJournalHolders = new int[tree.getNodeCount()];
+        categoryNode = new int[tree.getNodeCount()];
+        freeCategories = new int[tree.getNodeCount()];
+
+        // the categories are a StateNode, so are sized here from the clades alone;
+        // the clade map and node map are built on first use, when the tree is in its starting state
+        cladeIndex = new CladeIndex(tree, calibrations);
+        int unConstrained = cladeIndex.getUnconstrainedNodeCount();
+
+        nrOfRates = (numberOfDiscreteRates.get() > 0 ? numberOfDiscreteRates.get() : tree.getNodeCount());
         categories = categoryInput.get();
         int nCategoryCount = calibrations.size() + unConstrained; //tree.getNodeCount() - 1;
         categories.setDimension(nCategoryCount);
         Integer[] iCategories = new Integer[nCategoryCount];
         for (int i = 0; i < nCategoryCount; i++) {
-            iCategories[i] = i;
+            iCategories[i] = i % nrOfRates;
         }
         IntegerParameter other = new IntegerParameter(iCategories);
         categories.assignFromWithoutID(other);
         categories.setLower(0);
-        categories.setUpper(tree.getNodeCount() - 1);
+        categories.setUpper(nrOfRates - 1);
         
-        rates = new double[tree.getNodeCount()];
-        storedRates = new double[rates.length];
-        for (int i = 0; i < rates.length; i++) {
-            try {
-				rates[i] = distribution.inverseCumulativeProbability((i + 0.5) / rates.length, stddevs.getValue());
-			} catch (MathException e) {
-				throw new IllegalArgumentException(e);
-			}
-        }
-        for (int k = 0; k < rates.length; k++) {
-        	System.arraycopy(rates, 0, storedRates, 0, rates.length);
-        }
+        quantileTables = new QuantileTableCache(quantileCacheSizeInput.get());
+        rates = quantileTables.getLogNormalTable(stddevs.getArrayValue(), nrOfRates, false, null, null);
+        storedRates = rates;
         Log.warning.println("Using " + nCategoryCount + " rates for " + this.getClass().getName().replaceAll(".*\\.", ""));
     }
 
-    public double getRateForBranch(Node node) {
-		if (!initialised) {
-			map = initialise(calibrations);
-			initialised = true;
-		}
-        if (node.isRoot()) {
-            // root has no rate
-            return 1;
-        }
-        if (recompute) {
-            prepare();
-            recompute = false;
-        }
-        if (renormalize) {
-            if (normalize) {
-                computeFactor();
-            }
-            renormalize = false;
+    /** 
+     * builds the node map for the tree as it is on first use. A starting tree that is not monophyletic for 
+     * all clades has no more nodes outside clades than there are categories, so some are left free.
+     */
+    @Override
+    protected void initClades() {
+        super.initClades();
+        final int unConstrained = categories.getDimension() - calibrations.size();
+        if (initNodeMap(unConstrained) > unConstrained) {
+        	// cannot happen: clades that are not monophyletic only take nodes away from the rest of the tree
+        	throw new IllegalArgumentException("More nodes outside clades than rate categories for them in " + getID());
         }
+    }
 
-        int nodeNumber = node.getNr();
+    @Override
+    protected void cladeMapChanged() {
+        updateNodeMap();
+    }
 
-        if (nodeNumber == categories.getDimension()) {
-            // root node has nr less than #categories, so use that nr
-            nodeNumber = node.getTree().getRoot().getNr();
+    /** 
+     * assign categories to nodes that are not in any clade, leaving any of the categoryCount categories
+     * that are left over free. Returns the number of such nodes.
+     */
+    private int initNodeMap(int categoryCount) {
+        Arrays.fill(nodeMap, -1);
+        Arrays.fill(categoryNode, 0, categoryCount, -1);
+        int unConstrained = 0;
+        for (int i = 0 ; i < map.length; i++) {
+        	if (map[i] < 0) {
+        		if (unConstrained < categoryCount) {
+        			nodeMap[i] = calibrations.size() + unConstrained;
+        			categoryNode[unConstrained] = i;
+        		}
+        		unConstrained++;
+        	}
         }
+        nodeMapJournalCount = 0;
+        return unConstrained;
+    }
 
-
-        int rateNr = (map[node.getNr()] >= 0 ? map[node.getNr()] : nodeMap[node.getNr()]);//calibrations.size());
-        int rateCategory = categories.getValue(rateNr);
-        
-        return rates[rateCategory] * scaleFactor * meanRate.getValue();
+    /** whether category k, minus the number of clades, belongs to a node that is not in any clade **/
+    private boolean isHeld(int k) {
+        final int nodeNr = categoryNode[k];
+        return nodeNr >= 0 && map[nodeNr] < 0 && nodeMap[nodeNr] == calibrations.size() + k;
     }
 
-    // compute scale factor
+    /** 
+     * hand categories of nodes that moved into a clade to nodes that moved out of a clade.
+     * For monophyletic clades the number of unconstrained nodes does not change, so
+     * there are always enough categories to go round. Other states never have more nodes
+     * outside clades than there are categories, so categories left free by earlier steps 
+     * are found when more nodes leave clades than enter them.
+     */
+    private void updateNodeMap() {
+        int [] changed = cladeIndex.getChangedNodes();
+        int [] changedFrom = cladeIndex.getChangedFrom();
+        int n = cladeIndex.getChangedNodeCount();
+        final int cladeCount = calibrations.size();
+        int freeCount = 0;
+        for (int i = 0; i < n; i++) {
+        	final int nodeNr = changed[i];
+        	if (changedFrom[i] < 0 && map[nodeNr] >= 0 && nodeMap[nodeNr] >= cladeCount 
+        			&& categoryNode[nodeMap[nodeNr] - cladeCount] == nodeNr) {
+        		freeCategories[freeCount++] = nodeMap[nodeNr];
+        	}
+        }
+        for (int i = 0; i < n; i++) {
+        	final int nodeNr = changed[i];
+        	if (changedFrom[i] >= 0 && map[nodeNr] < 0 
+        			&& (nodeMap[nodeNr] < cladeCount || !isHeld(nodeMap[nodeNr] - cladeCount))) {
+        		setNodeMap(nodeNr, freeCount > 0 ? freeCategories[--freeCount] : findFreeCategory());
+        	}
+        }
+    }
 
-    private void computeFactor() {
+    /** a category no node outside the clades holds, only needed when more nodes left clades than entered them **/
+    private int findFreeCategory() {
+        final int cladeCount = calibrations.size();
+        for (int k = 0; k < categories.getDimension() - cladeCount; k++) {
+        	if (!isHeld(k)) {
+        		return cladeCount + k;
+        	}
+        }
+        throw new IllegalStateException("No rate category left for a node outside the clades of " + getID());
+    }
 
-        //scale mean rate to 1.0 or separate parameter
+    private void setNodeMap(int nodeNr, int category) {
+        if (nodeMapJournalCount == nodeMapJournalNodes.length) {
+        	nodeMapJournalNodes = Arrays.copyOf(nodeMapJournalNodes, nodeMapJournalCount * 2);
+        	nodeMapJournalValues = Arrays.copyOf(nodeMapJournalValues, nodeMapJournalCount * 2);
+        	nodeMapJournalHolders = Arrays.copyOf(nodeMapJournalHolders, nodeMapJournalCount * 2);
+        }
+        nodeMapJournalNodes[nodeMapJournalCount] = nodeNr;
+        nodeMapJournalValues[nodeMapJournalCount] = nodeMap[nodeNr];
+        nodeMapJournalHolders[nodeMapJournalCount++] = categoryNode[category - calibrations.size()];
+        nodeMap[nodeNr] = category;
+        categoryNode[category - calibrations.size()] = nodeNr;
+    }
 
-        double treeRate = 0.0;
-        double treeTime = 0.0;
+    @Override
+    protected double getRawBranchRate(int nodeNr) {
+        int rateNr = (map[nodeNr] >= 0 ? map[nodeNr] : nodeMap[nodeNr]);
+        return rates.get(categories.getNativeValue(rateNr));
+    }
 
-        for (int i = 0; i < tree.getNodeCount(); i++) {
-            Node node = tree.getNode(i);
-            if (!node.isRoot()) {
-                int nodeNumber = node.getNr();
-                if (nodeNumber == categories.getDimension()) {
-                    // root node has nr less than #categories, so use that nr
-                    nodeNumber = node.getTree().getRoot().getNr();
+    @Override
+    protected void markDirtyBranches() {
+        if (!initialised) {
+            return;
+        }
+        if (stddevs.somethingIsDirty()) {
+            normaliser.markAllDirty();
+            return;
+        }
+        if (tree.somethingIsDirty()) {
+            normaliser.markDirty(tree, dirtyNodes, dirtyNodeCount);
+            normaliser.markDirty(cladeIndex.getChangedNodes(), cladeIndex.getChangedNodeCount());
+        }
+        IntegerParameter categories = categoryInput.get();
+        if (categories.somethingIsDirty()) {
+            // categories are per clock, so mark all branches of the clock
+            final int cladeCount = calibrations.size();
+            for (int k = 0; k < categories.getDimension(); k++) {
+                if (categories.isDirty(k)) {
+                    if (k < cladeCount) {
+                        normaliser.markDirty(cladeNodes, cladeIndex.collectCladeNodes(k, cladeNodes));
+                    } else if (isHeld(k - cladeCount)) {
+                        normaliser.markDirty(categoryNode[k - cladeCount]);
+                    }
                 }
-                int rateNr = (map[node.getNr()] >= 0 ? map[node.getNr()] : calibrations.size());
-                int rateCategory = categories.getValue(rateNr);
-                treeRate += rates[rateCategory] * node.getLength();
-                treeTime += node.getLength();
-
-                //System.out.println("rates and time\t" + rates[rateCategory] + "\t" + node.getLength());
             }
         }
-        //treeRate /= treeTime;
-
-        scaleFactor = 1.0 / (treeRate / treeTime);
-
+    }
 
-        //System.out.println("scaleFactor\t\t\t\t\t" + scaleFactor);
+    @Override
+    protected void prepare() {
+        final QuantileTable previous = rates;
+        // when most categories were used for the previous stddev, calculate them all in one go
+        rates = quantileTables.getLogNormalTable(stddevs.getArrayValue(), rates.size(), rates.isDense(), rates, storedRates);
+        quantileTables.release(previous, rates, storedRates);
     }
 
+    /** for monitoring how well the cache of rate tables is sized **/
+    public QuantileTableCache getQuantileTableCache() {
+    	return quantileTables;
+    }
 
-    private void prepare() {
-//    	if (initialise) {
-//    		initialise();
-//    		initialise = false;
-//    	}
-        //System.out.println("prepare");
-
-        try {
-	        for (int i = 0; i < rates.length; i++) {
-	            rates[i] = distribution.inverseCumulativeProbability((i + 0.5) / rates.length, stddevs.getValue());
-	        }
-        } catch (Exception e) {
-            // Exception due to distribution not having  inverseCumulativeProbability implemented.
-            // This should already been caught at initAndValidate()
-            e.printStackTrace();
-            System.exit(0);
-        }
+    @Override
+    protected boolean rateDistributionChanged() {
+        return stddevs.somethingIsDirty();
+    }
 
-        //if (normalize) computeFactor();
+    @Override
+    protected boolean categoriesChanged() {
+        return categoryInput.get().somethingIsDirty();
     }
 
     @Override
-    protected boolean requiresRecalculation() {
-        recompute = false;
-        renormalize = true;
-
-//        if (treeInput.get().somethingIsDirty()) {
-//        	recompute = true;
-//            return true;
-//        }
-        // rateDistInput cannot be dirty?!?
+    protected void addDirtyInputs(StringBuilder cause) {
         if (stddevs.somethingIsDirty()) {
-            recompute = true;
-            return true;
+            addCause(cause, "stddev");
         }
-        // NOT processed as trait on the tree, so DO mark as dirty
         if (categoryInput.get().somethingIsDirty()) {
-            //recompute = true;
-            return true;
-        }
-        if (meanRate.somethingIsDirty()) {
-            return true;
+            addCause(cause, "category");
         }
-
-        return recompute;
     }
 
+    /** the node map is journalled along with the rate table **/
     @Override
-    public void store() {
-       	System.arraycopy(rates, 0, storedRates, 0, rates.length);
-        storedScaleFactor = scaleFactor;
-        super.store();
+    protected void storeTables() {
+       	final QuantileTable previous = storedRates;
+       	storedRates = rates;
+       	quantileTables.release(previous, rates, storedRates);
+        nodeMapJournalCount = 0;
     }
 
     @Override
-    public void restore() {
-        double[] tmp = rates;
+    protected void restoreTables() {
+        final QuantileTable previous = rates;
         rates = storedRates;
-        storedRates = tmp;
-        scaleFactor = storedScaleFactor;
-        super.restore();
-    }
-
-
-    public class LogNormalImpl implements ContinuousDistribution {
-        double m_fMean;
-        double m_fStdDev;
-        NormalDistributionImpl m_normal = new NormalDistributionImpl(0, 1);
-
-        public LogNormalImpl(double fMean, double fStdDev) {
-            setMeanAndStdDev(fMean, fStdDev);
-        }
-
-        void setMeanAndStdDev(double fMean, double fStdDev) {
-        	// mean in real space
-            fMean = Math.log(fMean) - (0.5 * fStdDev * fStdDev);
-            m_fMean = fMean;
-            m_fStdDev = fStdDev;
-            m_normal.setMean(fMean);
-            m_normal.setStandardDeviation(fStdDev);
-        }
-
-        @Override
-        public double cumulativeProbability(double x) throws MathException {
-            return m_normal.cumulativeProbability(Math.log(x));
+        quantileTables.release(previous, rates, storedRates);
+        for (int i = nodeMapJournalCount - 1; i >= 0; i--) {
+        	final int nodeNr = nodeMapJournalNodes[i];
+        	categoryNode[nodeMap[nodeNr] - calibrations.size()] = nodeMapJournalHolders[i];
+        	nodeMap[nodeNr] = nodeMapJournalValues[i];
         }
+        nodeMapJournalCount = 0;
+    }
 
-        @Override
-        public double cumulativeProbability(double x0, double x1) throws MathException {
-            return cumulativeProbability(x1) - cumulativeProbability(x0);
+    /**
+     * rate of every clade and mean rate of the branches outside clades before normalisation,
+     * the standard deviation and the normalisation factor
+     */
+    @Override
+    protected void addLogColumns(String prefix, List<String> columns) {
+        for (MRCAPrior clade : calibrations) {
+            columns.add(prefix + "." + LogBuffer.cladeName(clade));
         }
+        // the column MultiRelaxedClockModel3 logs the rate of its root clock in
+        columns.add(prefix + ".root");
+        columns.add(prefix + ".stddev");
+        columns.add(prefix + ".scaleFactor");
+    }
 
-        public double inverseCumulativeProbability(double p, double stddev) throws MathException {
-        	setMeanAndStdDev(1.0, stddev);
-            return Math.exp(m_normal.inverseCumulativeProbability(p));
+    @Override
+    protected void logValues(LogBuffer buffer) {
+        final double mean = meanRate.getArrayValue();
+        for (int k = 0; k < calibrations.size(); k++) {
+            buffer.add(rates.get(categories.getNativeValue(k)) * mean);
         }
+        buffer.add(getUnconstrainedRate() * mean);
+        buffer.add(stddevs.getArrayValue());
+        buffer.add(scaleFactor);
+    }
 
-        @Override
-        public double inverseCumulativeProbability(double p) throws MathException {
-            return Math.exp(m_normal.inverseCumulativeProbability(p));
+    /** mean rate of the branches outside any clade, which each have a category of their own **/
+    private double getUnconstrainedRate() {
+        if (map == null) {
+            return 0;
         }
-        
-        @Override
-        public double density(double fX) {
-            if( fX <= 0 ) {
-                return 0;
+        final int rootNr = tree.getRoot().getNr();
+        double sum = 0;
+        int count = 0;
+        for (int i = 0; i < map.length; i++) {
+            if (map[i] < 0 && i != rootNr) {
+                sum += getRawBranchRate(i);
+                count++;
             }
-            return m_normal.density(Math.log(fX)) / fX;
         }
-
-        @Override
-        public double logDensity(double fX) {
-            if( fX <= 0 ) {
-                return  Double.NEGATIVE_INFINITY;
-            }
-            return m_normal.logDensity(Math.log(fX)) - Math.log(fX);
-        }
-    } // class LogNormalImpl
+        return count > 0 ? sum / count : 0;
+    }
 }
@@ -1,28 +1,36 @@
 package beast.evolution.branchratemodel;
 
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.List;
 
 import beast.core.Description;
 import beast.core.Input;
 import beast.core.Input.Validate;
+import beast.core.Loggable;
 import beast.core.parameter.RealParameter;
 import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
 import beast.math.distributions.MRCAPrior;
 
 @Description("Clock model that has different strict clocks for different clades, assumes clades are monophyletic")
-public class MultiStrictClockModel extends BranchRateModel.Base implements MultiClock {
+public class MultiStrictClockModel extends BranchRateModel.Base implements MultiClock, Loggable, ClockCounters.Counted {
 	public Input<RealParameter> baseRateInput = new Input<RealParameter>("baserate", "clock rate for nodes not contained in clades", Validate.REQUIRED);
 	public Input<List<RealParameter>> clockRatesInput = new Input<>("clockrate", "list of clocks, one for each clade", new ArrayList<>());
 	public Input<List<MRCAPrior>> cladesInput = new Input<List<MRCAPrior>>("clade", "list of clades, one for each clock rate", new ArrayList<>());
 	
-	boolean initialised = false;
+	volatile boolean initialised = false;
+	boolean storedInitialised = false;
 	int [] map;
+	CladeIndex cladeIndex;
+	Tree tree;
 	
 	List<RealParameter> clockRates;
 	List<MRCAPrior> clades;
 	RealParameter baseRate;
 	
+	private final ClockCounters counters = new ClockCounters(this);
+	
 	@Override
 	public void initAndValidate() {
 		if (clockRatesInput.get().size() != cladesInput.get().size()) {
@@ -35,6 +43,7 @@ public class MultiStrictClockModel extends BranchRateModel.Base implements Multi
 		baseRate = baseRateInput.get();
 		clockRates = clockRatesInput.get();
 		clades = cladesInput.get();
+		tree = clades.get(0).treeInput.get();
 		
 		// ensure all clades are monophyletic
 		for (MRCAPrior clade : clades) {
@@ -44,18 +53,67 @@ public class MultiStrictClockModel extends BranchRateModel.Base implements Multi
 		}
 	}
 	
+	/** lock free once initialised: the map only changes in requiresRecalculation() **/
 	@Override
 	public double getRateForBranch(Node node) {
 		if (!initialised) {
-			map = initialise(cladesInput.get());
-			initialised = true;
+			initialise();
 		}
 		int clockNumber = map[node.getNr()];
 		if (clockNumber >= 0) {
-			double rate = clockRates.get(clockNumber).getValue();
+			double rate = clockRates.get(clockNumber).getArrayValue();
 			return rate;
 		}
-		return baseRate.getValue();
+		return baseRate.getArrayValue();
+	}
+
+	/** sets up the clade map on first use, when the tree is in its starting state **/
+	private synchronized void initialise() {
+		if (!initialised) {
+			final long start = counters.start(ClockCounters.INITIALISE);
+			cladeIndex = new CladeIndex(tree, clades);
+			map = cladeIndex.initialise();
+			counters.stop(ClockCounters.INITIALISE, start, tree.getNodeCount(), ClockCounters.FIRST_USE);
+			initialised = true;
+		}
+	}
+
+	@Override
+	protected boolean requiresRecalculation() {
+		if (initialised && tree.somethingIsDirty()) {
+			// only remaps the nodes that moved in or out of clades
+			cladeIndex.update();
+		}
+		return true;
+	}
+
+	@Override
+	public void store() {
+		final long start = counters.start(ClockCounters.STORE);
+		storedInitialised = initialised;
+		if (initialised) {
+			cladeIndex.store();
+		}
+		super.store();
+		counters.stop(ClockCounters.STORE, start, 0, ClockCounters.NO_CAUSE);
+	}
+
+	@Override
+	public void restore() {
+		final long start = counters.start(ClockCounters.RESTORE);
+		final int restoredBranches = (initialised ? cladeIndex.getChangedNodeCount() : 0);
+		if (initialised) {
+			cladeIndex.restore();
+		}
+		// the map was first set up for the rejected state, so start afresh
+		initialised = storedInitialised;
+		super.restore();
+		counters.stop(ClockCounters.RESTORE, start, restoredBranches, ClockCounters.REJECTED);
+	}
+
+	@Override
+	public ClockCounters getCounters() {
+		return counters;
 	}
 
 //	private void initialise() {
@@ -165,4 +223,39 @@ public class MultiStrictClockModel extends BranchRateModel.Base implements Multi
 //
 //	
 	
+
+	private LogBuffer logBuffer;
+
+	@Override
+	public void init(PrintStream out) {
+		getLogBuffer().writeHeader(out);
+	}
+
+	@Override
+	public void log(long sample, PrintStream out) {
+		LogBuffer buffer = getLogBuffer();
+		for (int i = 0; i < clockRates.size(); i++) {
+			buffer.add(clockRates.get(i).getArrayValue());
+		}
+		buffer.add(baseRate.getArrayValue());
+		buffer.writeTo(out);
+	}
+
+	@Override
+	public void close(PrintStream out) {
+	}
+
+	/** clock rate of every clade and of the rest of the tree, set up on first use when all IDs are known **/
+	private LogBuffer getLogBuffer() {
+		if (logBuffer == null) {
+			String prefix = LogBuffer.prefix(this, baseRate);
+			List<String> columns = new ArrayList<>();
+			for (MRCAPrior clade : clades) {
+				columns.add(prefix + "." + LogBuffer.cladeName(clade));
+			}
+			columns.add(prefix + ".root");
+			logBuffer = new LogBuffer(columns);
+		}
+		return logBuffer;
+	}
 }
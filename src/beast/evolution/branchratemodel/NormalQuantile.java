@@ -0,0 +1,134 @@
+package beast.evolution.branchratemodel;
+
+/**
+ * Quantile function of the standard normal distribution, using the rational
+ * approximations of Wichura's algorithm AS241 (PPND16), which are accurate to
+ * about 1 part in 10^16. Unlike the iterative solver in commons-math this takes
+ * a fixed, small number of operations per call, which matters when rate tables
+ * with a quantile per branch are rebuilt on every change of a standard deviation.
+ *
+ * Wichura MJ (1988) Algorithm AS 241: The percentage points of the normal distribution.
+ * Applied Statistics 37: 477-484.
+ */
+public class NormalQuantile {
+
+	/** evaluates the central region for a range of categories, as central() does **/
+	interface Central {
+		void inverse(int size, int from, int to, double [] x, int offset);
+	}
+
+	/** 
+	 * Vector API version of central(), null if the JVM was started without the jdk.incubator.vector
+	 * module, NormalQuantileVector was not compiled, the CPU has no SIMD lanes for doubles, or
+	 * -Dmulticlock.vector=false is set
+	 */
+	final static Central VECTOR = (Boolean.parseBoolean(System.getProperty("multiclock.vector", "true")) ? loadVector() : null);
+
+	private NormalQuantile() {
+	}
+
+	private static Central loadVector() {
+		try {
+			return (Central) Class.forName("beast.evolution.branchratemodel.NormalQuantileVector")
+					.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			// no jdk.incubator.vector in this JVM, or fewer than two lanes
+			return null;
+		}
+	}
+
+	/** returns x such that P(X <= x) = p for a standard normal X **/
+	public static double inverse(final double p) {
+		if (p <= 0) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		if (p >= 1) {
+			return Double.POSITIVE_INFINITY;
+		}
+		final double q = p - 0.5;
+		if (Math.abs(q) <= 0.425) {
+			final double r = 0.180625 - q * q;
+			return q * (((((((2.5090809287301226727e+3 * r + 3.3430575583588128105e+4) * r
+					+ 6.7265770927008700853e+4) * r + 4.5921953931549871457e+4) * r
+					+ 1.3731693765509461125e+4) * r + 1.9715909503065514427e+3) * r
+					+ 1.3314166789178437745e+2) * r + 3.3871328727963666080e0)
+				/ (((((((5.2264952788528545610e+3 * r + 2.8729085735721942674e+4) * r
+					+ 3.9307895800092710610e+4) * r + 2.1213794301586595867e+4) * r
+					+ 5.3941960214247511077e+3) * r + 6.8718700749205790830e+2) * r
+					+ 4.2313330701600911252e+1) * r + 1.0);
+		}
+
+		double r = Math.sqrt(-Math.log(q < 0 ? p : 1.0 - p));
+		double x;
+		if (r <= 5.0) {
+			r -= 1.6;
+			x = (((((((7.74545014278341407640e-4 * r + 2.27238449892691845833e-2) * r
+					+ 2.41780725177450611770e-1) * r + 1.27045825245236838258e0) * r
+					+ 3.64784832476320460504e0) * r + 5.76949722146069140550e0) * r
+					+ 4.63033784615654529590e0) * r + 1.42343711074968357734e0)
+				/ (((((((1.05075007164441684324e-9 * r + 5.47593808499534494600e-4) * r
+					+ 1.51986665636164571966e-2) * r + 1.48103976427480074590e-1) * r
+					+ 6.89767334985100004550e-1) * r + 1.67638483018380384940e0) * r
+					+ 2.05319162663775882187e0) * r + 1.0);
+		} else {
+			r -= 5.0;
+			x = (((((((2.01033439929228813265e-7 * r + 2.71155556874348757815e-5) * r
+					+ 1.24266094738807843860e-3) * r + 2.65321895265761230930e-2) * r
+					+ 2.96560571828504891230e-1) * r + 1.78482653991729133580e0) * r
+					+ 5.46378491116411436990e0) * r + 6.65790464350110377720e0)
+				/ (((((((2.04426310338993978564e-15 * r + 1.42151175831644588870e-7) * r
+					+ 1.84631831751005468180e-5) * r + 7.86869131145613259100e-4) * r
+					+ 1.48753612908506148525e-2) * r + 1.36929880922735805310e-1) * r
+					+ 5.99832206555887937690e-1) * r + 1.0);
+		}
+		return q < 0 ? -x : x;
+	}
+
+	/**
+	 * sets x[offset + i] = inverse((i + 0.5) / size) for i in [from, to), as for the categories 
+	 * of a rate table, giving exactly the same values as calling inverse() for each category.
+	 * 
+	 * Nearly all categories are in the central region, so that rational function is evaluated 
+	 * for all of them without branches, through the Vector API where available, see NormalQuantileVector,
+	 * and otherwise in a loop the JIT can compile to SIMD instructions. Categories in the tails are 
+	 * corrected in a second pass.
+	 */
+	public static void inverse(final int size, final int from, final int to, final double [] x, final int offset) {
+		if (VECTOR != null) {
+			VECTOR.inverse(size, from, to, x, offset);
+		} else {
+			central(size, from, to, x, offset);
+		}
+		// tails are at both ends of the range
+		for (int i = from; i < to; i++) {
+			final double p = (i + 0.5) / size;
+			if (Math.abs(p - 0.5) <= 0.425) {
+				break;
+			}
+			x[offset + i] = inverse(p);
+		}
+		for (int i = to - 1; i >= from; i--) {
+			final double p = (i + 0.5) / size;
+			if (Math.abs(p - 0.5) <= 0.425) {
+				break;
+			}
+			x[offset + i] = inverse(p);
+		}
+	}
+
+	/** the central region of inverse() for every category in [from, to), whether it is in that region or not **/
+	static void central(final int size, final int from, final int to, final double [] x, final int offset) {
+		for (int i = from; i < to; i++) {
+			final double q = (i + 0.5) / size - 0.5;
+			final double r = 0.180625 - q * q;
+			x[offset + i] = q * (((((((2.5090809287301226727e+3 * r + 3.3430575583588128105e+4) * r
+					+ 6.7265770927008700853e+4) * r + 4.5921953931549871457e+4) * r
+					+ 1.3731693765509461125e+4) * r + 1.9715909503065514427e+3) * r
+					+ 1.3314166789178437745e+2) * r + 3.3871328727963666080e0)
+				/ (((((((5.2264952788528545610e+3 * r + 2.8729085735721942674e+4) * r
+					+ 3.9307895800092710610e+4) * r + 2.1213794301586595867e+4) * r
+					+ 5.3941960214247511077e+3) * r + 6.8718700749205790830e+2) * r
+					+ 4.2313330701600911252e+1) * r + 1.0);
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package beast.evolution.branchratemodel;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Central region of NormalQuantile.inverse() for a range of categories through the Vector API,
+ * as many categories at a time as the CPU has lanes for doubles.
+ *
+ * Every lane does the same multiplications, additions and divisions in the same order as
+ * NormalQuantile.central(), without fused multiply-adds, so gives exactly the same values.
+ *
+ * Needs Java 16 or later started with --add-modules jdk.incubator.vector. Nothing refers to this
+ * class directly: NormalQuantile loads it by name, so the package still loads without the module,
+ * and build.xml only compiles this file when the JDK has it.
+ */
+class NormalQuantileVector implements NormalQuantile.Central {
+	final static VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	/** coefficients of numerator and denominator of the central region, highest power first **/
+	final static double [] NUMERATOR = {2.5090809287301226727e+3, 3.3430575583588128105e+4,
+			6.7265770927008700853e+4, 4.5921953931549871457e+4, 1.3731693765509461125e+4,
+			1.9715909503065514427e+3, 1.3314166789178437745e+2, 3.3871328727963666080e0};
+	final static double [] DENOMINATOR = {5.2264952788528545610e+3, 2.8729085735721942674e+4,
+			3.9307895800092710610e+4, 2.1213794301586595867e+4, 5.3941960214247511077e+3,
+			6.8718700749205790830e+2, 4.2313330701600911252e+1, 1.0};
+
+	/** 0, 1, 2, ..., the category of each lane relative to the first **/
+	private final DoubleVector lanes;
+
+	NormalQuantileVector() {
+		if (SPECIES.length() < 2) {
+			// no SIMD for doubles, so the scalar loop is as fast
+			throw new UnsupportedOperationException("only " + SPECIES.length() + " lane for doubles");
+		}
+		double [] index = new double[SPECIES.length()];
+		for (int k = 0; k < index.length; k++) {
+			index[k] = k;
+		}
+		lanes = DoubleVector.fromArray(SPECIES, index, 0);
+	}
+
+	@Override
+	public void inverse(final int size, final int from, final int to, final double [] x, final int offset) {
+		final int end = from + SPECIES.loopBound(to - from);
+		int i = from;
+		for (; i < end; i += SPECIES.length()) {
+			// category numbers are exact in a double, so this is (i + k + 0.5) / size - 0.5 as in the scalar loop
+			final DoubleVector q = lanes.add(i).add(0.5).div(size).sub(0.5);
+			final DoubleVector r = DoubleVector.broadcast(SPECIES, 0.180625).sub(q.mul(q));
+			DoubleVector num = DoubleVector.broadcast(SPECIES, NUMERATOR[0]);
+			DoubleVector den = DoubleVector.broadcast(SPECIES, DENOMINATOR[0]);
+			for (int j = 1; j < NUMERATOR.length; j++) {
+				num = num.mul(r).add(NUMERATOR[j]);
+				den = den.mul(r).add(DENOMINATOR[j]);
+			}
+			q.mul(num).div(den).intoArray(x, offset + i);
+		}
+		// categories left over are fewer than the number of lanes
+		NormalQuantile.central(size, i, to, x, offset);
+	}
+}
@@ -0,0 +1,94 @@
+package beast.evolution.branchratemodel;
+
+import java.util.Arrays;
+
+/**
+ * Discretised log-normal rate distribution with mean 1, where category i is the
+ * quantile at (i + 0.5) / size of the distribution with the given standard deviation.
+ *
+ * Quantiles are only calculated when a category is first asked for, since typically
+ * far fewer categories are in use than the table has. Instead of marking entries
+ * that are not calculated yet with a sentinel value, every entry records the
+ * generation it was calculated in, and pointing the table at another standard
+ * deviation starts a new generation. That invalidates all entries without a pass
+ * over the table.
+ *
+ * When most categories end up being used, calculateAll() fills the whole table at once
+ * in a loop the JIT can vectorise, which is cheaper than one quantile at a time.
+ *
+ * Entries are filled in while rates are calculated in requiresRecalculation(), so
+ * a table is not safe to use from several threads at once.
+ */
+public class QuantileTable {
+	private final double [] values;
+	/** generation in which each entry was calculated **/
+	private final long [] calculatedIn;
+	private long generation = 1;
+	/** number of entries calculated in the current generation **/
+	private int calculatedCount = 0;
+	private double stddev;
+
+	public QuantileTable(final int size, final double stddev) {
+		values = new double[size];
+		calculatedIn = new long[size];
+		this.stddev = stddev;
+	}
+
+	/** reuse this table for another standard deviation, forgetting all quantiles **/
+	public void reset(final double stddev) {
+		this.stddev = stddev;
+		generation++;
+		calculatedCount = 0;
+	}
+
+	/** calculate the quantiles of all categories at once **/
+	public void calculateAll() {
+		LogNormalImpl.inverseCumulativeProbability(stddev, values.length, 0, values.length, values, 0);
+		Arrays.fill(calculatedIn, generation);
+		calculatedCount = values.length;
+	}
+
+	/** 
+	 * whether at least half the categories were calculated, in which case a table 
+	 * replacing this one is probably better off with calculateAll() 
+	 */
+	public boolean isDense() {
+		return 2 * calculatedCount >= values.length;
+	}
+
+	/** quantile of category i, calculated on first use **/
+	public double get(final int i) {
+		if (calculatedIn[i] != generation) {
+			values[i] = LogNormalImpl.inverseCumulativeProbability((i + 0.5) / values.length, stddev);
+			calculatedIn[i] = generation;
+			calculatedCount++;
+		}
+		return values[i];
+	}
+
+	public boolean isCalculated(final int i) {
+		return calculatedIn[i] == generation;
+	}
+
+	/** value of category i, only meaningful if isCalculated(i) **/
+	double getCalculated(final int i) {
+		return values[i];
+	}
+
+	/** sets category i to a value calculated elsewhere for the same standard deviation **/
+	void setCalculated(final int i, final double value) {
+		if (calculatedIn[i] != generation) {
+			calculatedCount++;
+		}
+		values[i] = value;
+		calculatedIn[i] = generation;
+	}
+
+	public int size() {
+		return values.length;
+	}
+
+	public double getStddev() {
+		return stddev;
+	}
+}
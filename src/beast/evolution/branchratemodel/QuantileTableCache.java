@@ -0,0 +1,169 @@
+package beast.evolution.branchratemodel;
+
+/**
+ * Least recently used cache of discretised rate tables, keyed by distribution,
+ * distribution parameter (e.g. the standard deviation of a log-normal) and
+ * number of categories.
+ *
+ * After a rejected proposal on a standard deviation, the restored value was seen
+ * a moment ago, and scale operators tend to revisit nearby values, so keeping a
+ * few tables around saves rebuilding them quantile by quantile.
+ *
+ * Tables handed out are shared between the cache and its users. They fill in
+ * quantiles as these are used, which the cache benefits from too, but must not be
+ * reset to another standard deviation while they are in the cache.
+ *
+ * The cache only holds a handful of tables, so entries are kept in plain arrays and
+ * found by a linear scan. Unlike a LinkedHashMap, neither lookups nor insertions
+ * allocate, and the table dropped to make room is handed back so it can be reused.
+ * Clock models that use cached tables directly, rather than copying them, get them
+ * through getLogNormalTable() and release(), which keep a dropped table as spare
+ * once no state refers to it.
+ */
+public class QuantileTableCache {
+
+	final int capacity;
+
+	/** key and value of entry i, with the time it was last used **/
+	final String [] distributions;
+	final long [] parameters;
+	final int [] sizes;
+	final QuantileTable [] tables;
+	final long [] lastUsed;
+	int entryCount = 0;
+	long clock = 0;
+
+	long hitCount = 0;
+	long missCount = 0;
+
+	/** table dropped from the cache that is not in use, reused to avoid allocating a new one **/
+	private QuantileTable spareTable;
+
+	public QuantileTableCache(final int capacity) {
+		this.capacity = Math.max(capacity, 0);
+		distributions = new String[this.capacity];
+		parameters = new long[this.capacity];
+		sizes = new int[this.capacity];
+		tables = new QuantileTable[this.capacity];
+		lastUsed = new long[this.capacity];
+	}
+
+	/** returns the cached table, or null if it is not in the cache **/
+	public QuantileTable get(String distribution, double parameter, int size) {
+		final int i = indexOf(distribution, Double.doubleToLongBits(parameter), size);
+		if (i < 0) {
+			missCount++;
+			return null;
+		}
+		hitCount++;
+		lastUsed[i] = ++clock;
+		return tables[i];
+	}
+
+	/** whether the table is in the cache, without counting a hit or miss, or marking it as used **/
+	public boolean contains(String distribution, double parameter, int size) {
+		return indexOf(distribution, Double.doubleToLongBits(parameter), size) >= 0;
+	}
+
+	/** whether this very table is in the cache, so it must not be reset for another parameter **/
+	public boolean holds(QuantileTable table) {
+		for (int i = 0; i < entryCount; i++) {
+			if (tables[i] == table) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * adds a table, possibly evicting the least recently used one
+	 * @return the evicted table, or null if nothing was evicted
+	 */
+	public QuantileTable put(String distribution, double parameter, int size, QuantileTable table) {
+		if (capacity == 0) {
+			return null;
+		}
+		final long bits = Double.doubleToLongBits(parameter);
+		int i = indexOf(distribution, bits, size);
+		QuantileTable evicted = null;
+		if (i < 0) {
+			if (entryCount < capacity) {
+				i = entryCount++;
+			} else {
+				i = 0;
+				for (int j = 1; j < entryCount; j++) {
+					if (lastUsed[j] < lastUsed[i]) {
+						i = j;
+					}
+				}
+				evicted = tables[i];
+			}
+			distributions[i] = distribution;
+			parameters[i] = bits;
+			sizes[i] = size;
+		} else if (tables[i] != table) {
+			evicted = tables[i];
+		}
+		tables[i] = table;
+		lastUsed[i] = ++clock;
+		return evicted;
+	}
+
+	/**
+	 * returns the log-normal rate table for stddev, from the cache if it was visited recently,
+	 * or else the spare table or a new one, of which quantiles are only calculated once a
+	 * category is used, unless calculateAll is set.
+	 * @param current table of the current state, which is kept if it gets dropped from the cache
+	 * @param stored table of the stored state, which is kept if it gets dropped from the cache
+	 */
+	public QuantileTable getLogNormalTable(double stddev, int size, boolean calculateAll,
+			QuantileTable current, QuantileTable stored) {
+		QuantileTable table = get(LogNormalImpl.NAME, stddev, size);
+		if (table == null) {
+			if (spareTable != null && spareTable.size() == size) {
+				table = spareTable;
+				table.reset(stddev);
+			} else {
+				table = new QuantileTable(size, stddev);
+			}
+			spareTable = null;
+			if (calculateAll) {
+				table.calculateAll();
+			}
+			release(put(LogNormalImpl.NAME, stddev, size, table), current, stored);
+		}
+		return table;
+	}
+
+	/**
+	 * keeps a table neither the current nor the stored state refers to, and the cache no longer
+	 * holds, so it can hold the next new one. Tables dropped while in use are to be released
+	 * once the current and stored state moved on.
+	 */
+	public void release(QuantileTable table, QuantileTable current, QuantileTable stored) {
+		if (table != null && table != current && table != stored && !holds(table)) {
+			spareTable = table;
+		}
+	}
+
+	private int indexOf(String distribution, long bits, int size) {
+		for (int i = 0; i < entryCount; i++) {
+			if (parameters[i] == bits && sizes[i] == size && distributions[i].equals(distribution)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	public long getMissCount() {
+		return missCount;
+	}
+
+	public int size() {
+		return entryCount;
+	}
+}
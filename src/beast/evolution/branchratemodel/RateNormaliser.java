@@ -0,0 +1,174 @@
+package beast.evolution.branchratemodel;
+
+import java.util.function.IntToDoubleFunction;
+
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+
+/**
+ * Keeps track of the sum over branches of raw rate times branch length, and of
+ * the sum of branch lengths, which relaxed clocks use to normalise their rates.
+ *
+ * Clock models mark the branches whose rate or length changed in requiresRecalculation(),
+ * and only those branches are used to update the sums. Every FULL_RECALCULATION_INTERVAL
+ * updates, the sums are recalculated from scratch so rounding errors cannot build up.
+ * Changes are journalled, so restore() only undoes what changed since store().
+ */
+public class RateNormaliser {
+	final static int FULL_RECALCULATION_INTERVAL = 1000;
+
+	/** raw rate and length of each branch, as used in the sums **/
+	double [] rates, lengths;
+	double treeRate, treeTime;
+	double storedTreeRate, storedTreeTime;
+	/** whether the sums were out of date at the last store() **/
+	boolean storedPending;
+
+	/** branches that changed since the last update **/
+	int [] dirtyNodes;
+	int dirtyNodeCount;
+	boolean [] isDirty;
+	boolean allDirty = true;
+
+	/** old values of branches changed since the last store() **/
+	int [] journalNodes;
+	double [] journalRates, journalLengths;
+	int journalCount;
+	int [] journalStamp;
+	int stamp = 1;
+
+	int updateCount;
+	/** number of branches revisited by the last call to getScaleFactor() **/
+	int updatedBranchCount;
+
+	public RateNormaliser(final int nodeCount) {
+		rates = new double[nodeCount];
+		lengths = new double[nodeCount];
+		dirtyNodes = new int[nodeCount];
+		isDirty = new boolean[nodeCount];
+		journalNodes = new int[nodeCount];
+		journalRates = new double[nodeCount];
+		journalLengths = new double[nodeCount];
+		journalStamp = new int[nodeCount];
+	}
+
+	public void markDirty(final int nodeNr) {
+		if (!isDirty[nodeNr]) {
+			isDirty[nodeNr] = true;
+			dirtyNodes[dirtyNodeCount++] = nodeNr;
+		}
+	}
+
+	public void markDirty(final int [] nodeNrs, final int count) {
+		for (int i = 0; i < count; i++) {
+			markDirty(nodeNrs[i]);
+		}
+	}
+
+	/**
+	 * mark branches of nodes the tree flagged as changed, e.g. by a height or topology move,
+	 * as collected by CladeIndex.collectDirtyNodes()
+	 */
+	public void markDirty(final Tree tree, final int [] nodeNrs, final int count) {
+		if (allDirty) {
+			return;
+		}
+		for (int k = 0; k < count; k++) {
+			final Node node = tree.getNode(nodeNrs[k]);
+			// a new height changes the branches to the children as well
+			markDirty(nodeNrs[k]);
+			for (int j = 0; j < node.getChildCount(); j++) {
+				markDirty(node.getChild(j).getNr());
+			}
+		}
+	}
+
+	public void markAllDirty() {
+		allDirty = true;
+	}
+
+	/**
+	 * bring the sums up to date
+	 * @param rawRate returns the rate of the branch above a node, without mean rate or scale factor
+	 * @return the factor that normalises the mean rate to 1
+	 */
+	public double getScaleFactor(final Tree tree, final IntToDoubleFunction rawRate) {
+		if (allDirty || updateCount >= FULL_RECALCULATION_INTERVAL) {
+			treeRate = 0.0;
+			treeTime = 0.0;
+			for (int i = 0; i < rates.length; i++) {
+				set(i, tree.getNode(i), rawRate);
+				treeRate += rates[i] * lengths[i];
+				treeTime += lengths[i];
+			}
+			updateCount = 0;
+			updatedBranchCount = rates.length;
+		} else {
+			// the root may have moved, and has no branch to contribute
+			markDirty(tree.getRoot().getNr());
+			for (int k = 0; k < dirtyNodeCount; k++) {
+				final int i = dirtyNodes[k];
+				treeRate -= rates[i] * lengths[i];
+				treeTime -= lengths[i];
+				set(i, tree.getNode(i), rawRate);
+				treeRate += rates[i] * lengths[i];
+				treeTime += lengths[i];
+			}
+			updateCount++;
+			updatedBranchCount = dirtyNodeCount;
+		}
+		clearDirty();
+		return 1.0 / (treeRate / treeTime);
+	}
+
+	private void set(final int i, final Node node, final IntToDoubleFunction rawRate) {
+		if (journalStamp[i] != stamp) {
+			journalStamp[i] = stamp;
+			journalNodes[journalCount] = i;
+			journalRates[journalCount] = rates[i];
+			journalLengths[journalCount++] = lengths[i];
+		}
+		if (node.isRoot()) {
+			rates[i] = 0;
+			lengths[i] = 0;
+		} else {
+			rates[i] = rawRate.applyAsDouble(i);
+			lengths[i] = node.getLength();
+		}
+	}
+
+	private void clearDirty() {
+		for (int k = 0; k < dirtyNodeCount; k++) {
+			isDirty[dirtyNodes[k]] = false;
+		}
+		dirtyNodeCount = 0;
+		allDirty = false;
+	}
+
+	public int getUpdatedBranchCount() {
+		return updatedBranchCount;
+	}
+
+	public void store() {
+		storedPending = allDirty || dirtyNodeCount > 0;
+		storedTreeRate = treeRate;
+		storedTreeTime = treeTime;
+		journalCount = 0;
+		stamp++;
+	}
+
+	public void restore() {
+		for (int k = 0; k < journalCount; k++) {
+			final int i = journalNodes[k];
+			rates[i] = journalRates[k];
+			lengths[i] = journalLengths[k];
+		}
+		journalCount = 0;
+		stamp++;
+		treeRate = storedTreeRate;
+		treeTime = storedTreeTime;
+		clearDirty();
+		// changes marked before the store() were lost with the marks of the rejected proposal
+		allDirty = storedPending;
+	}
+}
@@ -0,0 +1,413 @@
+package beast.evolution.branchratemodel;
+
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.Supplier;
+
+import beast.core.BEASTInterface;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Loggable;
+import beast.core.parameter.RealParameter;
+import beast.core.util.Log;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import beast.math.distributions.MRCAPrior;
+
+/**
+ * Bookkeeping shared by the relaxed clock models in this package.
+ *
+ * Rates of all branches are calculated once per step in requiresRecalculation(), or on
+ * first use, and handed out lock free through BranchRates. Steps that only move the tree
+ * recalculate just the branches that can get a new rate; with normalisation, the scale
+ * factor is kept apart from the rates and applied when they are read.
+ * Subclasses supply the raw rate of a branch, and say which of their inputs changed; clade
+ * map, normalisation, store and restore, counters and logging are taken care of here.
+ */
+@Description("Relaxed clock model that calculates the rates of all branches once per step")
+public abstract class RelaxedClockBase extends BranchRateModel.Base implements Loggable, ClockCounters.Counted {
+    public Input<Tree> treeInput = new Input<Tree>("tree", "the tree this relaxed clock is associated with.", Input.Validate.REQUIRED);
+    public Input<Boolean> normalizeInput = new Input<Boolean>("normalize", "Whether to normalize the average rate (default false).", false);
+
+    Tree tree;
+    RealParameter meanRate;
+    /** monophyletic clades with a clock of their own, empty for models without clades **/
+    List<MRCAPrior> calibrations = new ArrayList<>();
+    /** clade number of each node, -1 if the node is not in any clade, null for models without clades **/
+    int [] map;
+    CladeIndex cladeIndex;
+    /** nodes the tree flagged as changed in this step, collected once for clade index and normaliser **/
+    int [] dirtyNodes;
+    int dirtyNodeCount;
+    /** scratch space for the nodes of one clade, see CladeIndex.collectCladeNodes() **/
+    int [] cladeNodes;
+    volatile boolean initialised = false;
+    boolean storedInitialised = false;
+
+    boolean normalize = false;
+    /** whether prepare() needs to run before branch rates are calculated **/
+    boolean recompute = true;
+    /** false if only some branches need a new rate, see calculateChangedBranchRates() **/
+    boolean allBranchesChanged = true;
+    /** root of the tree the published rates are for, -1 before the first update **/
+    int rootNr = -1;
+    int storedRootNr = -1;
+    double scaleFactor = 1.0;
+    double storedScaleFactor = 1.0;
+    RateNormaliser normaliser;
+    IntToDoubleFunction rawBranchRate = this::getRawBranchRate;
+
+    /** rate of each branch, indexed by node number **/
+    BranchRates branchRates;
+
+    final ClockCounters counters = new ClockCounters(this);
+    Supplier<String> dirtyCause = this::getDirtyCause;
+
+    private LogBuffer logBuffer;
+
+    @Override
+    public void initAndValidate() {
+        tree = treeInput.get();
+        branchRates = new BranchRates(tree.getNodeCount());
+        dirtyNodes = new int[tree.getNodeCount()];
+        cladeNodes = new int[tree.getNodeCount()];
+
+        normalize = normalizeInput.get();
+        normaliser = new RateNormaliser(tree.getNodeCount());
+
+        meanRate = meanRateInput.get();
+        if (meanRate == null) {
+            meanRate = new RealParameter("1.0");
+        }
+    }
+
+    /** pick up monophyletic constraints on the tree and on the initial tree **/
+    void collectCalibrations() {
+        for (final Object plugin : tree.getOutputs()) {
+            addCalibration(plugin);
+        }
+        if (tree.m_initial.get() != null) {
+            for (final Object plugin : tree.m_initial.get().getOutputs()) {
+                addCalibration(plugin);
+            }
+        }
+    }
+
+    private void addCalibration(final Object plugin) {
+        if (plugin instanceof MRCAPrior && !calibrations.contains(plugin)) {
+        	if (((MRCAPrior) plugin).isMonophyleticInput.get()) {
+        		calibrations.add((MRCAPrior) plugin);
+        	} else {
+        		Log.warning.println("Calibration that is not monophyletic found " + ((BEASTInterface) plugin).getID());
+        	}
+        }
+    }
+
+    /** rate of the branch above node nodeNr, before normalisation and mean rate **/
+    protected abstract double getRawBranchRate(int nodeNr);
+
+    /** mean rate of the clock the branch above node nodeNr belongs to **/
+    protected double getMeanRate(int nodeNr) {
+        return meanRate.getArrayValue();
+    }
+
+    /** brings rate tables up to date after rateDistributionChanged() **/
+    protected abstract void prepare();
+
+    /** whether the distribution rates are drawn from changed, so prepare() needs to run **/
+    protected abstract boolean rateDistributionChanged();
+
+    /** whether the categories or quantiles that pick rates for branches changed **/
+    protected abstract boolean categoriesChanged();
+
+    /** tell the normaliser which branches got a new raw rate or length **/
+    protected abstract void markDirtyBranches();
+
+    /** appends names of the model specific inputs that changed, see addCause() **/
+    protected abstract void addDirtyInputs(StringBuilder cause);
+
+    /** keep and restore the rate tables of the stored state **/
+    protected abstract void storeTables();
+    protected abstract void restoreTables();
+
+    /** columns logged after the prefix, and their values in the same order **/
+    protected abstract void addLogColumns(String prefix, List<String> columns);
+    protected abstract void logValues(LogBuffer buffer);
+
+    /**
+     * whether prepare() gives every branch a new raw rate, rather than only the branches
+     * calculateChangedBranchRates() picks out
+     */
+    protected boolean prepareChangesAllBranches() {
+        return true;
+    }
+
+    /** sets up the clade map on first use, when the tree is in its starting state **/
+    protected void initClades() {
+        if (cladeIndex == null) {
+            cladeIndex = new CladeIndex(tree, calibrations);
+        }
+        map = cladeIndex.initialise();
+    }
+
+    /** called when nodes moved in or out of clades, see cladeIndex.getChangedNodes() **/
+    protected void cladeMapChanged() {
+    }
+
+    @Override
+    public ClockCounters getCounters() {
+        return counters;
+    }
+
+    /** lock free: rates are calculated in requiresRecalculation(), before likelihoods ask for them **/
+    @Override
+    public double getRateForBranch(Node node) {
+        if (!initialised) {
+            initialise();
+        }
+        // root has no rate
+        return node.isRoot() ? 1 : branchRates.get(node.getNr());
+    }
+
+    /** copies rates of all branches, indexed by node number, into out **/
+    public void getRatesForAllBranches(double [] out) {
+        if (!initialised) {
+            initialise();
+        }
+        branchRates.getAll(out);
+        out[tree.getRoot().getNr()] = 1;
+    }
+
+    /**
+     * node numbers of branches whose rate changed in this step, of which the first
+     * getChangedNodeCount() are valid. Only meaningful when this model is dirty.
+     * A new normalisation factor changes the rates of all branches.
+     */
+    public int [] getChangedNodes() {
+        return branchRates.getChangedNodes();
+    }
+
+    public int getChangedNodeCount() {
+        return branchRates.getChangedNodeCount();
+    }
+
+    /** whether the rate of the branch above node nodeNr changed in this step **/
+    public boolean isBranchRateChanged(int nodeNr) {
+        return branchRates.isChanged(nodeNr);
+    }
+
+    /** sets up clade map and branch rates on first use, when the tree is in its starting state **/
+    private synchronized void initialise() {
+        if (!initialised) {
+            final long start = counters.start(ClockCounters.INITIALISE);
+            initClades();
+            recompute = true;
+            allBranchesChanged = true;
+            normaliser.markAllDirty();
+            updateBranchRates();
+            counters.stop(ClockCounters.INITIALISE, start, tree.getNodeCount(), ClockCounters.FIRST_USE);
+            initialised = true;
+        }
+    }
+
+    /** calculates rates of branches for the current state, and publishes them **/
+    void updateBranchRates() {
+        if (recompute) {
+            final long start = counters.start(ClockCounters.PREPARE);
+            prepare();
+            counters.stop(ClockCounters.PREPARE, start);
+            recompute = false;
+        }
+        if (normalize) {
+            computeFactor();
+        }
+
+        branchRates.startUpdate();
+        branchRates.setScale(scaleFactor);
+        final int oldRootNr = rootNr;
+        rootNr = tree.getRoot().getNr();
+        if (allBranchesChanged || oldRootNr < 0) {
+            calculateBranchRates();
+        } else {
+            calculateChangedBranchRates(oldRootNr);
+        }
+        branchRates.publish();
+        counters.commit(ClockCounters.PREPARE, branchRates.getChangedNodeCount(), dirtyCause);
+    }
+
+    /** fills in the rate of every branch **/
+    protected void calculateBranchRates() {
+        final int nodeCount = tree.getNodeCount();
+        for (int i = 0; i < nodeCount; i++) {
+            setBranchRate(i);
+        }
+    }
+
+    /**
+     * fills in rates of the branches that can change when rate tables and mean rates
+     * stay the same: those of the old and new root, of the node that uses the
+     * category of the root, and of nodes that moved in or out of clades
+     */
+    protected void calculateChangedBranchRates(int oldRootNr) {
+        setBranchRate(oldRootNr);
+        setBranchRate(rootNr);
+        setBranchRate(tree.getNodeCount() - 1);
+        if (cladeIndex != null) {
+            final int [] changed = cladeIndex.getChangedNodes();
+            final int n = cladeIndex.getChangedNodeCount();
+            for (int i = 0; i < n; i++) {
+                setBranchRate(changed[i]);
+            }
+        }
+    }
+
+    /** calculates the rate of the branch above node nodeNr in the new state, before scaling **/
+    final void setBranchRate(int nodeNr) {
+        if (nodeNr == rootNr) {
+            // root has no rate
+            branchRates.set(nodeNr, 1);
+            return;
+        }
+        branchRates.set(nodeNr, getRawBranchRate(nodeNr) * getMeanRate(nodeNr));
+    }
+
+    // compute scale factor
+
+    private void computeFactor() {
+        final long start = counters.start(ClockCounters.COMPUTE_FACTOR);
+
+        //scale mean rate to 1.0 or separate parameter
+        scaleFactor = normaliser.getScaleFactor(tree, rawBranchRate);
+        counters.stop(ClockCounters.COMPUTE_FACTOR, start, normaliser.getUpdatedBranchCount(), dirtyCause);
+    }
+
+    @Override
+    protected boolean requiresRecalculation() {
+        recompute = false;
+
+        dirtyNodeCount = 0;
+        if (tree.somethingIsDirty() && (normalize || (initialised && cladeIndex != null))) {
+            // the tree keeps no list of moved nodes, so this is the one pass over all nodes
+            dirtyNodeCount = CladeIndex.collectDirtyNodes(tree, dirtyNodes);
+        }
+
+        boolean cladesChanged = false;
+        if (initialised && cladeIndex != null && tree.somethingIsDirty()) {
+            // only remaps the nodes that moved in or out of clades
+            cladesChanged = cladeIndex.update(dirtyNodes, dirtyNodeCount) > 0;
+            if (cladesChanged) {
+                cladeMapChanged();
+            }
+        }
+        if (normalize) {
+            markDirtyBranches();
+        }
+
+        // rateDistInput cannot be dirty?!?
+        if (rateDistributionChanged()) {
+            recompute = true;
+        }
+        // NOT processed as trait on the tree, so DO mark as dirty
+        boolean categoriesChanged = categoriesChanged();
+        boolean meanRateChanged = meanRate.somethingIsDirty();
+
+        // a tree move only changes the branches calculateChangedBranchRates() visits, also
+        // with normalisation, since the scale factor is applied when rates are read
+        allBranchesChanged = categoriesChanged || meanRateChanged || (recompute && prepareChangesAllBranches());
+
+        // the scale factor depends on branch lengths
+        boolean scaleChanged = normalize && tree.somethingIsDirty();
+
+        boolean changed = recompute || categoriesChanged || meanRateChanged || cladesChanged || scaleChanged;
+        if (initialised && (changed || tree.somethingIsDirty())) {
+            // a new root gets rate 1, even when nothing else changed
+            updateBranchRates();
+        }
+        return changed;
+    }
+
+    @Override
+    public void store() {
+        final long start = counters.start(ClockCounters.STORE);
+        storeTables();
+        storedScaleFactor = scaleFactor;
+        normaliser.store();
+        branchRates.store();
+        storedRootNr = rootNr;
+        storedInitialised = initialised;
+        if (initialised && cladeIndex != null) {
+            cladeIndex.store();
+        }
+        super.store();
+        counters.stop(ClockCounters.STORE, start, 0, ClockCounters.NO_CAUSE);
+    }
+
+    @Override
+    public void restore() {
+        final long start = counters.start(ClockCounters.RESTORE);
+        final int restoredBranches = branchRates.getChangedNodeCount();
+        restoreTables();
+        scaleFactor = storedScaleFactor;
+        normaliser.restore();
+        branchRates.restore();
+        rootNr = storedRootNr;
+        if (initialised && cladeIndex != null) {
+            cladeIndex.restore();
+        }
+        // rates were first calculated for the rejected state, so start afresh
+        initialised = storedInitialised;
+        super.restore();
+        counters.stop(ClockCounters.RESTORE, start, restoredBranches, ClockCounters.REJECTED);
+    }
+
+    /** inputs that changed in this step, as cause of Flight Recorder events **/
+    String getDirtyCause() {
+        StringBuilder cause = new StringBuilder();
+        addDirtyInputs(cause);
+        if (meanRate.somethingIsDirty()) {
+            addCause(cause, "meanRate");
+        }
+        if (tree.somethingIsDirty()) {
+            addCause(cause, "tree");
+        }
+        return cause.length() > 0 ? cause.toString() : "none";
+    }
+
+    static void addCause(StringBuilder cause, String input) {
+        cause.append(cause.length() > 0 ? " " : "").append(input);
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        getLogBuffer().writeHeader(out);
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        LogBuffer buffer = getLogBuffer();
+        logValues(buffer);
+        buffer.writeTo(out);
+    }
+
+    @Override
+    public void close(PrintStream out) {
+    }
+
+    /** start of column headers, see LogBuffer.prefix() **/
+    protected String getLogPrefix() {
+        return LogBuffer.prefix(this, meanRate);
+    }
+
+    /** set up on first use, when all IDs are known **/
+    private LogBuffer getLogBuffer() {
+        if (logBuffer == null) {
+            List<String> columns = new ArrayList<>();
+            addLogColumns(getLogPrefix(), columns);
+            logBuffer = new LogBuffer(columns);
+        }
+        return logBuffer;
+    }
+}
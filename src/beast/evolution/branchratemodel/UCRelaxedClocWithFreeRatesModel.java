@@ -1,7 +1,7 @@
 package beast.evolution.branchratemodel;
 
 
-import java.util.Arrays;
+import java.util.List;
 
 
 import beast.core.Citation;
@@ -23,7 +23,7 @@ import beast.util.Randomizer;
         "Drummond AJ, Ho SYW, Phillips MJ, Rambaut A (2006) Relaxed Phylogenetics and\n" +
         "  Dating with Confidence. PLoS Biol 4(5): e88", DOI = "10.1371/journal.pbio.0040088",
         year = 2006, firstAuthorSurname = "drummond")
-public class UCRelaxedClocWithFreeRatesModel extends BranchRateModel.Base {
+public class UCRelaxedClocWithFreeRatesModel extends RelaxedClockBase {
 
 	
     final public Input<RealParameter> freeRatesInput = new Input<>("freeRates", "the distribution governing the rates among branches. Must have mean of 1. The clock.rate parameter can be used to change the mean rate.", Input.Validate.REQUIRED);
@@ -33,12 +33,10 @@ public class UCRelaxedClocWithFreeRatesModel extends BranchRateModel.Base {
 
     //final public Input<RealParameter> quantileInput = new Input<>("rateQuantiles", "the rate quantiles associated with nodes in the tree for sampling of individual rates among branches.", Input.Validate.XOR, categoryInput);
 
-    final public Input<Tree> treeInput = new Input<>("tree", "the tree this relaxed clock is associated with.", Input.Validate.REQUIRED);
-    final public Input<Boolean> normalizeInput = new Input<>("normalize", "Whether to normalize the average rate (default false).", false);
 //    public Input<Boolean> initialiseInput = new Input<>("initialise", "Whether to initialise rates by a heuristic instead of random (default false).", false);
 
     
-    RealParameter meanRate, freeRates;
+    RealParameter freeRates;
 //    boolean initialise;
 
     int LATTICE_SIZE_FOR_DISCRETIZED_RATES = 100;
@@ -50,8 +48,7 @@ public class UCRelaxedClocWithFreeRatesModel extends BranchRateModel.Base {
 
     @Override
     public void initAndValidate() {
-
-        tree = treeInput.get();
+        super.initAndValidate();
         branchCount = tree.getNodeCount() - 1;
         freeRates = freeRatesInput.get();
 
@@ -84,17 +81,11 @@ public class UCRelaxedClocWithFreeRatesModel extends BranchRateModel.Base {
            
 
  
-            // rates are initially zero and are computed by getRawRate(int i) as needed
+            // rates are copied from freeRates by prepare()
             rates = new double[LATTICE_SIZE_FOR_DISCRETIZED_RATES];
             storedRates = new double[LATTICE_SIZE_FOR_DISCRETIZED_RATES];
 
             //System.arraycopy(rates, 0, storedRates, 0, rates.length);
-        normalize = normalizeInput.get();
-
-        meanRate = meanRateInput.get();
-        if (meanRate == null) {
-            meanRate = new RealParameter("1.0");
-        }
 
         try {
             double mean = 0;
@@ -110,57 +101,35 @@ public class UCRelaxedClocWithFreeRatesModel extends BranchRateModel.Base {
         }
     }
 
+    /** no clades, branches only differ by their category **/
     @Override
-	public double getRateForBranch(Node node) {
-        if (node.isRoot()) {
-            // root has no rate
-            return 1;
-        }
-
-   		if (recompute) {
-   	        // this must be synchronized to avoid being called simultaneously by
-   	        // two different likelihood threads
-   	    	synchronized (this) {
-    			prepare();
-    			recompute = false;
-    		}
-    	}
-
-        if (renormalize) {
-            if (normalize) {
-            	synchronized (this) {
-            		computeFactor();
-            	}
-            }
-            renormalize = false;
-        }
-
-        return getRawRate(node) * scaleFactor * meanRate.getValue();
+    protected void initClades() {
     }
 
-    /**
-     * Computes a scale factor for normalization. Only called if normalize=true.
-     */
-    private void computeFactor() {
-
-        //scale mean rate to 1.0 or separate parameter
-
-        double treeRate = 0.0;
-        double treeTime = 0.0;
+    @Override
+    protected double getRawBranchRate(int nodeNr) {
+        return getRawRateForCategory(tree.getNode(nodeNr));
+    }
 
-            for (int i = 0; i < tree.getNodeCount(); i++) {
-                Node node = tree.getNode(i);
-                if (!node.isRoot()) {
-                    treeRate += getRawRateForCategory(node) * node.getLength();
-                    treeTime += node.getLength();
+    @Override
+    protected void markDirtyBranches() {
+        if (freeRates.somethingIsDirty()) {
+            normaliser.markAllDirty();
+            return;
+        }
+        if (tree.somethingIsDirty()) {
+            normaliser.markDirty(tree, dirtyNodes, dirtyNodeCount);
+            // a new root changes which node uses the category of the root
+            normaliser.markDirty(branchCount);
+        }
+        if (categories.somethingIsDirty()) {
+            int rootNr = tree.getRoot().getNr();
+            for (int i = 0; i < categories.getDimension(); i++) {
+                if (categories.isDirty(i)) {
+                    normaliser.markDirty(i == rootNr ? branchCount : i);
                 }
             }
- 
-        scaleFactor = 1.0 / (treeRate / treeTime);
-    }
-
-    private double getRawRate(Node node) {
-        return getRawRateForCategory(node);
+        }
     }
 
     /**
@@ -175,24 +144,29 @@ public class UCRelaxedClocWithFreeRatesModel extends BranchRateModel.Base {
             nodeNumber = node.getTree().getRoot().getNr();
         }
 
-        int category = categories.getValue(nodeNumber);
-
-        if (rates[category] == 0.0) {
-          		rates[category] = freeRates.getValue(category);
-        }
+        int category = categories.getNativeValue(nodeNumber);
         return rates[category];
     }
 
 
-    private void prepare() {
+    @Override
+    protected void prepare() {
 
         categories = categoryInput.get();
 
         tree = treeInput.get();
 
+        if (!ratesSwapped) {
+            // leave the rates of the stored state alone, so restore() only needs a swap
+            double[] tmp = rates;
+            rates = storedRates;
+            storedRates = tmp;
+            ratesSwapped = true;
+        }
         // rates array initialized to correct length in initAndValidate
-        // here we just reset rates to zero and they are computed by getRawRate(int i) as needed
-        Arrays.fill(rates, 0.0);
+        for (int i = 0; i < rates.length; i++) {
+            rates[i] = freeRates.getArrayValue(i);
+        }
     }
 
     /**
@@ -296,61 +270,57 @@ public class UCRelaxedClocWithFreeRatesModel extends BranchRateModel.Base {
 //    	
 //    }
     @Override
-    protected boolean requiresRecalculation() {
-        recompute = false;
-        renormalize = true;
-
-//        if (treeInput.get().somethingIsDirty()) {
-//        	recompute = true;
-//            return true;
-//        }
-        // rateDistInput cannot be dirty?!?
-        if (freeRates.somethingIsDirty()) {
-            recompute = true;
-            return true;
-        }
-        // NOT processed as trait on the tree, so DO mark as dirty
-        if (categoryInput.get() != null && categoryInput.get().somethingIsDirty()) {
-            //recompute = true;
-            return true;
-        }
-
-        if (meanRate.somethingIsDirty()) {
-            return true;
-        }
-
-        return recompute;
+    protected boolean rateDistributionChanged() {
+        return freeRates.somethingIsDirty();
     }
 
     @Override
-    public void store() {
-    	System.arraycopy(rates, 0, storedRates, 0, rates.length);
+    protected boolean categoriesChanged() {
+        return categoryInput.get() != null && categoryInput.get().somethingIsDirty();
+    }
 
-        storedScaleFactor = scaleFactor;
-        super.store();
+    @Override
+    protected void storeTables() {
+        ratesSwapped = false;
     }
 
     @Override
-    public void restore() {
-        double[] tmp = rates;
-        rates = storedRates;
-        storedRates = tmp;
-        scaleFactor = storedScaleFactor;
-        super.restore();
+    protected void restoreTables() {
+        if (ratesSwapped) {
+            double[] tmp = rates;
+            rates = storedRates;
+            storedRates = tmp;
+            ratesSwapped = false;
+        }
     }
 
     //ParametricDistribution distribution;
     IntegerParameter categories;
     //RealParameter quantiles;
-    Tree tree;
-
-    private boolean normalize = false;
-    private boolean recompute = true;
-    private boolean renormalize = true;
 
     private double[] rates;
     private double[] storedRates;
-    private double scaleFactor = 1.0;
-    private double storedScaleFactor = 1.0;
+    /** whether rates and storedRates were swapped since the last store() **/
+    private boolean ratesSwapped = false;
+
+    @Override
+    protected void addDirtyInputs(StringBuilder cause) {
+        if (freeRates.somethingIsDirty()) {
+            addCause(cause, "freeRates");
+        }
+        if (categories.somethingIsDirty()) {
+            addCause(cause, "category");
+        }
+    }
+
+    /** the normalisation factor, the rates themselves are logged with the freeRates parameter **/
+    @Override
+    protected void addLogColumns(String prefix, List<String> columns) {
+        columns.add(prefix + ".scaleFactor");
+    }
 
-}
\ No newline at end of file
+    @Override
+    protected void logValues(LogBuffer buffer) {
+        buffer.add(scaleFactor);
+    }
+}
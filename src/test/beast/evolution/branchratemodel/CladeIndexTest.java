@@ -0,0 +1,351 @@
+package test.beast.evolution.branchratemodel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import beast.evolution.alignment.Taxon;
+import beast.evolution.alignment.TaxonSet;
+import beast.evolution.branchratemodel.CladeIndex;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import beast.math.distributions.MRCAPrior;
+import beast.util.TreeParser;
+
+/**
+ * Pins down which branches belong to a clade: the branches above its taxa and above
+ * the internal nodes strictly below its MRCA, but not the branch above the MRCA, and
+ * none of the branches elsewhere in the tree, however small their subtree.
+ */
+public class CladeIndexTest {
+	final static String NEWICK = "((((A:1,B:1):1,C:2):1,D:3):1,(E:1,F:1):3);";
+
+	@Test
+	public void testCladeMap() {
+		Tree tree = new TreeParser(NEWICK, false, false, true, 0);
+		MRCAPrior abc = clade(tree, "ABC", "A", "B", "C");
+		int [] map = new CladeIndex(tree, Arrays.asList(abc)).initialise();
+
+		assertEquals(0, map[nr(tree, "A")]);
+		assertEquals(0, map[nr(tree, "B")]);
+		assertEquals(0, map[nr(tree, "C")]);
+		assertEquals(0, map[parentNr(tree, "A")]);
+		// the branch above the MRCA is not part of the clade
+		assertEquals(-1, map[mrcaNr(tree, "A", "C")]);
+		assertEquals(-1, map[nr(tree, "D")]);
+		assertEquals(-1, map[tree.getRoot().getNr()]);
+	}
+
+	@Test
+	public void testUnrelatedSubtreesStayOutside() {
+		Tree tree = new TreeParser(NEWICK, false, false, true, 0);
+		MRCAPrior abc = clade(tree, "ABC", "A", "B", "C");
+		CladeIndex index = new CladeIndex(tree, Arrays.asList(abc));
+		int [] map = index.initialise();
+
+		// the E,F cherry has fewer taxa than the clade, but is not below its MRCA
+		assertEquals(-1, map[nr(tree, "E")]);
+		assertEquals(-1, map[nr(tree, "F")]);
+		assertEquals(-1, map[parentNr(tree, "E")]);
+
+		int [] expected = {nr(tree, "A"), nr(tree, "B"), parentNr(tree, "A"), nr(tree, "C")};
+		int [] cladeNodes = index.getCladeNodes(0);
+		Arrays.sort(expected);
+		Arrays.sort(cladeNodes);
+		assertArrayEquals(expected, cladeNodes);
+	}
+
+	@Test
+	public void testNestedClades() {
+		Tree tree = new TreeParser(NEWICK, false, false, true, 0);
+		// the inner clade comes first, so clades are not resolved in the order given
+		MRCAPrior ab = clade(tree, "AB", "A", "B");
+		MRCAPrior abc = clade(tree, "ABC", "A", "B", "C");
+		CladeIndex index = new CladeIndex(tree, Arrays.asList(ab, abc));
+		int [] map = index.initialise();
+
+		assertEquals(0, map[nr(tree, "A")]);
+		assertEquals(0, map[nr(tree, "B")]);
+		// the branch above the MRCA of the inner clade belongs to the outer clade
+		assertEquals(1, map[parentNr(tree, "A")]);
+		assertEquals(1, map[nr(tree, "C")]);
+		assertEquals(-1, map[mrcaNr(tree, "A", "C")]);
+		assertEquals(parentNr(tree, "A"), index.getMRCA(0));
+		assertEquals(mrcaNr(tree, "A", "C"), index.getMRCA(1));
+	}
+
+	@Test
+	public void testSingleTaxonClade() {
+		Tree tree = new TreeParser(NEWICK, false, false, true, 0);
+		MRCAPrior d = clade(tree, "D", "D");
+		MRCAPrior ef = clade(tree, "EF", "E", "F");
+		int [] map = new CladeIndex(tree, Arrays.asList(d, ef)).initialise();
+
+		// only the branch above the leaf
+		assertEquals(0, map[nr(tree, "D")]);
+		assertEquals(-1, map[parentNr(tree, "D")]);
+		assertEquals(1, map[nr(tree, "E")]);
+		assertEquals(1, map[nr(tree, "F")]);
+		assertEquals(-1, map[parentNr(tree, "E")]);
+		assertEquals(-1, map[nr(tree, "A")]);
+		assertEquals(-1, map[parentNr(tree, "A")]);
+	}
+
+	@Test
+	public void testCladeNodeCounts() {
+		Tree tree = new TreeParser(NEWICK, false, false, true, 0);
+		MRCAPrior ab = clade(tree, "AB", "A", "B");
+		MRCAPrior abcd = clade(tree, "ABCD", "A", "B", "C", "D");
+		MRCAPrior e = clade(tree, "E", "E");
+		MRCAPrior a = clade(tree, "A", "A");
+		List<List<MRCAPrior>> cladeSets = Arrays.asList(Arrays.asList(ab), Arrays.asList(ab, abcd),
+				Arrays.asList(e, abcd, ab), Arrays.asList(a, ab, abcd), new ArrayList<>());
+		for (List<MRCAPrior> clades : cladeSets) {
+			// known before the map is calculated, from the taxa in the clades only
+			CladeIndex index = new CladeIndex(tree, clades);
+			int [] counts = index.getCladeNodeCounts();
+			int [] map = index.initialise();
+			for (int i = -1; i < clades.size(); i++) {
+				assertEquals(countNodes(map, i), counts[i < 0 ? clades.size() : i]);
+			}
+			assertEquals(countNodes(map, -1), index.getUnconstrainedNodeCount());
+		}
+	}
+
+	static int countNodes(int [] map, int clade) {
+		int count = 0;
+		for (int i : map) {
+			if (i == clade) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Test
+	public void testUpdateFollowsMoves() {
+		Tree tree = new TreeParser(NEWICK, false, false, true, 0);
+		MRCAPrior ab = clade(tree, "AB", "A", "B");
+		MRCAPrior abc = clade(tree, "ABC", "A", "B", "C");
+		CladeIndex index = new CladeIndex(tree, Arrays.asList(ab, abc));
+		int [] original = index.initialise().clone();
+		index.store();
+
+		// D into the clade, as a proposal would before the MRCAPrior rejects it
+		Node d = node(tree, "D");
+		Node above = tree.getNode(mrcaNr(tree, "A", "C"));
+		move(d, node(tree, "A"));
+		assertTrue(index.update() > 0);
+		assertEquals(index.getChangedNodeCount(), countDifferences(original, index.getMap()));
+
+		// and back, which only the incremental update sees
+		move(d, above);
+		index.update();
+		assertArrayEquals(original, index.getMap());
+		assertArrayEquals(original, new CladeIndex(tree, Arrays.asList(ab, abc)).initialise());
+	}
+
+	@Test
+	public void testCollectCladeNodesFollowsMoves() {
+		Tree tree = new TreeParser(NEWICK, false, false, true, 0);
+		MRCAPrior ab = clade(tree, "AB", "A", "B");
+		MRCAPrior abcd = clade(tree, "ABCD", "A", "B", "C", "D");
+		MRCAPrior e = clade(tree, "E", "E");
+		CladeIndex index = new CladeIndex(tree, Arrays.asList(e, abcd, ab));
+		index.initialise();
+		assertCollectsCladeNodes(index, tree, 3);
+
+		// C into AB, and E next to A, which takes E's clade with it
+		move(node(tree, "C"), node(tree, "B"));
+		index.update();
+		assertCollectsCladeNodes(index, tree, 3);
+		move(node(tree, "E"), node(tree, "A"));
+		index.update();
+		assertCollectsCladeNodes(index, tree, 3);
+	}
+
+	@Test
+	public void testMonophylyFollowsMoves() {
+		Tree tree = new TreeParser(NEWICK, false, false, true, 0);
+		MRCAPrior ab = clade(tree, "AB", "A", "B");
+		MRCAPrior abc = clade(tree, "ABC", "A", "B", "C");
+		MRCAPrior ef = clade(tree, "EF", "E", "F");
+		CladeIndex index = new CladeIndex(tree, Arrays.asList(ab, abc, ef));
+		index.initialise();
+		assertTrue(index.isMonophyletic(0) && index.isMonophyletic(1) && index.isMonophyletic(2));
+
+		// D next to A breaks AB and ABC, but not EF
+		Node d = node(tree, "D");
+		Node above = tree.getNode(mrcaNr(tree, "A", "C"));
+		move(d, node(tree, "A"));
+		index.update();
+		assertFalse(index.isMonophyletic(0));
+		assertFalse(index.isMonophyletic(1));
+		assertTrue(index.isMonophyletic(2));
+
+		// D next to C only breaks ABC
+		move(d, node(tree, "C"));
+		index.update();
+		assertTrue(index.isMonophyletic(0));
+		assertFalse(index.isMonophyletic(1));
+
+		// and back
+		move(d, above);
+		index.update();
+		assertTrue(index.isMonophyletic(0) && index.isMonophyletic(1) && index.isMonophyletic(2));
+	}
+
+	/** collectCladeNodes() gives the nodes the map assigns to each clade, and to no clade **/
+	static void assertCollectsCladeNodes(CladeIndex index, Tree tree, int cladeCount) {
+		int [] map = index.getMap();
+		int [] nodes = new int[tree.getNodeCount()];
+		for (int i = -1; i < cladeCount; i++) {
+			int count = index.collectCladeNodes(i, nodes);
+			assertEquals(countNodes(map, i), count);
+			for (int k = 0; k < count; k++) {
+				assertEquals(i, map[nodes[k]]);
+			}
+		}
+	}
+
+	@Test
+	public void testRestoreUndoesUpdate() {
+		Tree tree = new TreeParser(NEWICK, false, false, true, 0);
+		MRCAPrior abc = clade(tree, "ABC", "A", "B", "C");
+		CladeIndex index = new CladeIndex(tree, Arrays.asList(abc));
+		int [] original = index.initialise().clone();
+		index.store();
+
+		Node d = node(tree, "D");
+		Node above = tree.getNode(mrcaNr(tree, "A", "C"));
+		move(d, node(tree, "C"));
+		assertTrue(index.update() > 0);
+		index.restore();
+		assertArrayEquals(original, index.getMap());
+
+		// the restored index carries on from the stored tree
+		move(d, above);
+		assertEquals(0, index.update());
+		assertArrayEquals(original, index.getMap());
+	}
+
+	@Test
+	public void testUpdateDoesNotAllocate() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		assumeTrue(allocations.isThreadAllocatedMemorySupported());
+		allocations.setThreadAllocatedMemoryEnabled(true);
+
+		Tree tree = new TreeParser(NEWICK, false, false, true, 0);
+		MRCAPrior ab = clade(tree, "AB", "A", "B");
+		MRCAPrior abc = clade(tree, "ABC", "A", "B", "C");
+		CladeIndex index = new CladeIndex(tree, Arrays.asList(ab, abc));
+		int [] original = index.initialise().clone();
+		index.store();
+
+		// D to the other side of the root and back, which keeps both clades monophyletic
+		Node d = node(tree, "D");
+		Node ef = tree.getNode(parentNr(tree, "E"));
+		Node above = tree.getNode(mrcaNr(tree, "A", "C"));
+		// warm up, so scratch space and journal have grown to size before measuring
+		for (int i = 0; i < 20000; i++) {
+			swapSides(index, d, ef, above);
+		}
+		final long threadId = Thread.currentThread().getId();
+		final long start = allocations.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < 10000; i++) {
+			swapSides(index, d, ef, above);
+		}
+		final long allocated = allocations.getThreadAllocatedBytes(threadId) - start;
+		assertTrue("update() and initialise() allocated " + allocated + " bytes", allocated < 1024);
+		assertArrayEquals(original, index.getMap());
+	}
+
+	/** moves D to the other side of the root and back, updating the index after each move, and once from scratch **/
+	private static void swapSides(CladeIndex index, Node d, Node ef, Node above) {
+		move(d, ef);
+		index.update();
+		index.store();
+		move(d, above);
+		index.update();
+		index.store();
+		index.initialise();
+		index.store();
+	}
+
+	static int countDifferences(int [] a, int [] b) {
+		int count = 0;
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] != b[i]) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/** prunes node with its parent, and regrafts it on the branch above target **/
+	static void move(Node node, Node target) {
+		Node parent = node.getParent();
+		Node sibling = (parent.getChild(0) == node ? parent.getChild(1) : parent.getChild(0));
+		Node grandParent = parent.getParent();
+		grandParent.removeChild(parent);
+		parent.removeChild(sibling);
+		grandParent.addChild(sibling);
+		Node targetParent = target.getParent();
+		targetParent.removeChild(target);
+		parent.addChild(target);
+		targetParent.addChild(parent);
+	}
+
+	static MRCAPrior clade(Tree tree, String id, String... taxa) {
+		List<Taxon> list = new ArrayList<>();
+		for (String taxon : taxa) {
+			list.add(new Taxon(taxon));
+		}
+		MRCAPrior prior = new MRCAPrior();
+		prior.setID(id);
+		prior.initByName("tree", tree, "taxonset", new TaxonSet(list), "monophyletic", true);
+		return prior;
+	}
+
+	static Node node(Tree tree, String id) {
+		for (Node node : tree.getNodesAsArray()) {
+			if (id.equals(node.getID())) {
+				return node;
+			}
+		}
+		throw new IllegalArgumentException("No node " + id);
+	}
+
+	static int nr(Tree tree, String id) {
+		return node(tree, id).getNr();
+	}
+
+	static int parentNr(Tree tree, String id) {
+		return node(tree, id).getParent().getNr();
+	}
+
+	/** node number of the MRCA of two taxa **/
+	static int mrcaNr(Tree tree, String id1, String id2) {
+		List<Node> path = new ArrayList<>();
+		for (Node node = node(tree, id1); node != null; node = node.getParent()) {
+			path.add(node);
+		}
+		Node node = node(tree, id2);
+		while (!path.contains(node)) {
+			node = node.getParent();
+		}
+		return node.getNr();
+	}
+}
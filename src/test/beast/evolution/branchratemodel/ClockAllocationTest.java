@@ -0,0 +1,289 @@
+package test.beast.evolution.branchratemodel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.apache.commons.math.distribution.Distribution;
+import org.junit.Test;
+
+import beast.core.Input;
+import beast.core.Input.Validate;
+import beast.core.State;
+import beast.core.StateNode;
+import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.RealParameter;
+import beast.evolution.branchratemodel.BranchRateModel;
+import beast.evolution.branchratemodel.LogNormalImpl;
+import beast.evolution.branchratemodel.MultiRelaxedClockModel;
+import beast.evolution.branchratemodel.MultiRelaxedClockModel2;
+import beast.evolution.branchratemodel.MultiRelaxedClockModel3;
+import beast.evolution.branchratemodel.MultiRelaxedClockModel4;
+import beast.evolution.branchratemodel.MultiStrictClockModel;
+import beast.evolution.branchratemodel.RelaxedClockBase;
+import beast.evolution.branchratemodel.UCRelaxedClocWithFreeRatesModel;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import beast.math.distributions.MRCAPrior;
+import beast.math.distributions.ParametricDistribution;
+import beast.util.TreeParser;
+
+/**
+ * Once warmed up, MCMC steps on the clock models must not allocate: recalculating after a
+ * tree, category or stddev proposal, reading the branch rates, and storing and restoring.
+ * Steps go through State the way MCMC does, and cycle through proposals of every kind,
+ * accepting some and restoring others. Standard deviations cycle through more values than
+ * the quantile cache holds, so every stddev proposal misses the cache.
+ */
+public class ClockAllocationTest {
+	final static int WARM_UP = 20000, STEPS = 2000, ROUNDS = 5;
+	final static int TAXON_COUNT = 20;
+	final static int CACHE_SIZE = 2;
+	/** boxed once, so setting them does not allocate **/
+	final static Double [] STDDEVS = {0.3, 0.35, 0.4, 0.45, 0.5};
+
+	final static int STDDEV = 0, CATEGORY = 1, HEIGHT = 2, TOPOLOGY = 3, PROPOSAL_COUNT = 4;
+
+	Tree tree;
+	/** 
+	 * stddev for the log-normal models, free rates for UCRelaxedClocWithFreeRatesModel, stddev of the
+	 * distribution of the first clade for MultiRelaxedClockModel and base rate for MultiStrictClockModel
+	 */
+	RealParameter rateParameter;
+	/** not used by MultiStrictClockModel, so swapping them changes nothing there **/
+	IntegerParameter categories;
+	BranchRateModel.Base model;
+	State state;
+	double [] rates;
+	long sample = 0;
+
+	@Test
+	public void testMultiRelaxedClockModel() {
+		for (boolean normalize : new boolean[] {false, true}) {
+			setUp(new MultiRelaxedClockModel(), "distr", normalize);
+			assertNoAllocation("MultiRelaxedClockModel normalize=" + normalize);
+		}
+	}
+
+	@Test
+	public void testMultiRelaxedClockModel2() {
+		for (boolean normalize : new boolean[] {false, true}) {
+			setUp(new MultiRelaxedClockModel2(), "stddev", normalize);
+			assertNoAllocation("MultiRelaxedClockModel2 normalize=" + normalize);
+		}
+	}
+
+	@Test
+	public void testMultiRelaxedClockModel3() {
+		for (boolean normalize : new boolean[] {false, true}) {
+			setUp(new MultiRelaxedClockModel3(), "stddev", normalize);
+			assertNoAllocation("MultiRelaxedClockModel3 normalize=" + normalize);
+		}
+	}
+
+	@Test
+	public void testMultiRelaxedClockModel4() {
+		for (boolean normalize : new boolean[] {false, true}) {
+			setUp(new MultiRelaxedClockModel4(), "stddev", normalize);
+			assertNoAllocation("MultiRelaxedClockModel4 normalize=" + normalize);
+		}
+	}
+
+	@Test
+	public void testUCRelaxedClocWithFreeRatesModel() {
+		for (boolean normalize : new boolean[] {false, true}) {
+			setUp(new UCRelaxedClocWithFreeRatesModel(), "freeRates", normalize);
+			assertNoAllocation("UCRelaxedClocWithFreeRatesModel normalize=" + normalize);
+		}
+	}
+
+	@Test
+	public void testMultiStrictClockModel() {
+		setUp(new MultiStrictClockModel(), "baserate", false);
+		assertNoAllocation("MultiStrictClockModel");
+	}
+
+	/** model on a caterpillar tree with two nested clades, with the clock model as posterior **/
+	void setUp(BranchRateModel.Base model, String rateInput, boolean normalize) {
+		this.model = model;
+		tree = new TreeParser(MultiRelaxedClockModel2Test.caterpillar(TAXON_COUNT), false, false, true, 0);
+		MRCAPrior first5 = CladeIndexTest.clade(tree, "first5", MultiRelaxedClockModel2Test.taxa(5));
+		MRCAPrior first10 = CladeIndexTest.clade(tree, "first10", MultiRelaxedClockModel2Test.taxa(10));
+		categories = new IntegerParameter("0");
+		if (model instanceof MultiStrictClockModel) {
+			rateParameter = new RealParameter("1.0");
+			model.initByName("clade", first5, "clade", first10, "clockrate", new RealParameter("0.5"), 
+					"clockrate", new RealParameter("2.0"), rateInput, rateParameter);
+		} else if (model instanceof MultiRelaxedClockModel) {
+			// one distribution per clade, so a stddev proposal only changes the branches of the first clade
+			rateParameter = new RealParameter(STDDEVS[0].toString());
+			model.initByName("tree", tree, rateInput, new LogNormalRates(rateParameter), 
+					rateInput, new LogNormalRates(new RealParameter("0.4")), rateInput, new LogNormalRates(new RealParameter("0.3")),
+					"rateCategories", categories, "clock.rate", new RealParameter("1.0"), "normalize", normalize);
+		} else if (model instanceof UCRelaxedClocWithFreeRatesModel) {
+			rateParameter = new RealParameter("0.5 0.8 1.0 1.2 1.5");
+			model.initByName("tree", tree, rateInput, rateParameter, "rateCategories", categories,
+					"clock.rate", new RealParameter("1.0"), "normalize", normalize);
+		} else {
+			rateParameter = new RealParameter(STDDEVS[0].toString());
+			model.initByName("tree", tree, rateInput, rateParameter, "rateCategories", categories,
+					"clock.rate", new RealParameter("1.0"), "normalize", normalize, "quantileCacheSize", CACHE_SIZE);
+		}
+		state = new State();
+		for (StateNode stateNode : new StateNode[] {tree, rateParameter, categories}) {
+			state.stateNodeInput.setValue(stateNode, state);
+		}
+		state.initAndValidate();
+		state.initialise();
+		state.setPosterior(model);
+		state.setEverythingDirty(false);
+		rates = new double[tree.getNodeCount()];
+		sample = 0;
+	}
+
+	void assertNoAllocation(String name) {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		assumeTrue(allocations.isThreadAllocatedMemorySupported());
+		allocations.setThreadAllocatedMemoryEnabled(true);
+		final long threadId = Thread.currentThread().getId();
+
+		// warm up, so code is compiled and caches and scratch space have grown to size
+		for (int i = 0; i < WARM_UP; i++) {
+			step(i);
+		}
+		// what reading the counter itself costs, if anything
+		long overhead = allocations.getThreadAllocatedBytes(threadId);
+		overhead = allocations.getThreadAllocatedBytes(threadId) - overhead;
+
+		// the fewest bytes of several rounds, so a one-off recompilation does not count
+		long allocated = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS && allocated > 0; round++) {
+			final long start = allocations.getThreadAllocatedBytes(threadId);
+			for (int i = 0; i < STEPS; i++) {
+				step(i);
+			}
+			allocated = Math.min(allocated, allocations.getThreadAllocatedBytes(threadId) - start - overhead);
+		}
+		assertEquals(name + " allocated bytes in " + STEPS + " steps", 0, allocated);
+	}
+
+	/** one MCMC step, with proposal and acceptance cycling so all combinations come round **/
+	void step(int i) {
+		state.store(sample++);
+		switch (i % PROPOSAL_COUNT) {
+		case STDDEV: proposeRate(i); break;
+		case CATEGORY: swapCategories(i); break;
+		case HEIGHT: proposeHeight(i); break;
+		default: proposeTopology(); break;
+		}
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+		// the likelihood reads the rates before the step is accepted or rejected
+		if (model instanceof RelaxedClockBase) {
+			((RelaxedClockBase) model).getRatesForAllBranches(rates);
+		}
+		for (int k = 0; k < tree.getNodeCount(); k++) {
+			rates[k] = model.getRateForBranch(tree.getNode(k));
+		}
+		if (i % 3 == 0) {
+			state.restore();
+			state.restoreCalculationNodes();
+		} else {
+			state.acceptCalculationNodes();
+		}
+		state.setEverythingDirty(false);
+	}
+
+	/** next stddev of a clock, or base rate of the strict clock, or swaps two free rates, which never allocates a boxed value **/
+	void proposeRate(int i) {
+		final int k = (i / PROPOSAL_COUNT) % rateParameter.getDimension();
+		if (model instanceof UCRelaxedClocWithFreeRatesModel) {
+			final int j = (k + 1) % rateParameter.getDimension();
+			final Double tmp = rateParameter.getValue(k);
+			rateParameter.setValue(k, rateParameter.getValue(j));
+			rateParameter.setValue(j, tmp);
+		} else {
+			rateParameter.setValue(k, STDDEVS[(i / PROPOSAL_COUNT) % STDDEVS.length]);
+		}
+	}
+
+	void swapCategories(int i) {
+		final int k = (i / PROPOSAL_COUNT) % categories.getDimension();
+		final int j = (k + 1) % categories.getDimension();
+		final Integer tmp = categories.getValue(k);
+		categories.setValue(k, categories.getValue(j));
+		categories.setValue(j, tmp);
+	}
+
+	/** moves an internal node of the first ten taxa, which proposeTopology() leaves in place, between its children and parent **/
+	void proposeHeight(int i) {
+		final Node node = tree.getNode(1 + (i / PROPOSAL_COUNT) % 9).getParent();
+		double lower = 0;
+		for (int k = 0; k < node.getChildCount(); k++) {
+			lower = Math.max(lower, node.getChild(k).getHeight());
+		}
+		final double upper = node.getParent().getHeight();
+		node.setHeight(lower + (upper - lower) * (0.25 + 0.5 * ((i / 7) % 2)));
+	}
+
+	/**
+	 * swaps the last two taxa around the parent of the last but one, outside both clades, so the clades
+	 * stay monophyletic. Nodes are looked up by number, since restoring the tree may replace them.
+	 */
+	void proposeTopology() {
+		final Node last = tree.getNode(TAXON_COUNT - 1);
+		final Node lastButOne = tree.getNode(TAXON_COUNT - 2);
+		final Node parent = lastButOne.getParent();
+		final Node sibling = (parent.getChild(0) == lastButOne ? parent.getChild(1) : parent.getChild(0));
+		if (sibling == last) {
+			// back next to the rest of the caterpillar
+			final Node root = parent.getParent();
+			CladeIndexTest.move(lastButOne, root.getChild(0) == parent ? root.getChild(1) : root.getChild(0));
+		} else {
+			CladeIndexTest.move(lastButOne, last);
+		}
+	}
+
+	/** 
+	 * log-normal distribution with mean 1 as rate distribution of MultiRelaxedClockModel. Its quantiles come
+	 * from LogNormalImpl, since those of commons-math allocate, which is not what this test is after.
+	 */
+	public static class LogNormalRates extends ParametricDistribution {
+		public Input<RealParameter> stddevInput = new Input<>("stddev", "standard deviation in log space", Validate.REQUIRED);
+
+		public LogNormalRates() {
+		}
+
+		public LogNormalRates(RealParameter stddev) {
+			initByName("stddev", stddev);
+		}
+
+		@Override
+		public void initAndValidate() {
+		}
+
+		@Override
+		public Distribution getDistribution() {
+			return null;
+		}
+
+		@Override
+		public double inverseCumulativeProbability(double p) {
+			return LogNormalImpl.inverseCumulativeProbability(p, stddevInput.get().getArrayValue());
+		}
+
+		@Override
+		public double getMean() {
+			return 1.0;
+		}
+
+		@Override
+		protected boolean requiresRecalculation() {
+			return stddevInput.get().somethingIsDirty();
+		}
+	}
+}
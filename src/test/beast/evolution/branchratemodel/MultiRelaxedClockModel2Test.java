@@ -0,0 +1,140 @@
+package test.beast.evolution.branchratemodel;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import beast.core.State;
+import beast.core.StateNode;
+import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.RealParameter;
+import beast.evolution.branchratemodel.MultiRelaxedClockModel2;
+import beast.evolution.branchratemodel.QuantileTableCache;
+import beast.evolution.tree.Tree;
+import beast.util.TreeParser;
+
+import org.junit.Test;
+
+/**
+ * Follows the rate tables of MultiRelaxedClockModel2 through MCMC steps, which go through
+ * State the way MCMC does, and checks they are reused rather than recalculated where they can be.
+ */
+public class MultiRelaxedClockModel2Test {
+	long sample = 0;
+
+	@Test
+	public void testReturnToStddevHitsCache() {
+		Tree tree = new TreeParser(CladeIndexTest.NEWICK, false, false, true, 0);
+		CladeIndexTest.clade(tree, "ABCD", "A", "B", "C", "D");
+		RealParameter stddev = new RealParameter("0.5");
+		MultiRelaxedClockModel2 model = new MultiRelaxedClockModel2();
+		model.initByName("tree", tree, "stddev", stddev, "rateCategories", new IntegerParameter("0"),
+				"clock.rate", new RealParameter("1.0"));
+		State state = createState(model, tree, stddev);
+		// every branch has a category of its own
+		double [] ratesA = rates(model, tree);
+		QuantileTableCache cache = model.getQuantileTableCache(0);
+
+		step(state, stddev, 0, 0.8);
+		double [] ratesB = rates(model, tree);
+		assertTrue(ratesA[CladeIndexTest.nr(tree, "A")] != ratesB[CladeIndexTest.nr(tree, "A")]);
+		assertEquals(ratesA[CladeIndexTest.nr(tree, "E")], ratesB[CladeIndexTest.nr(tree, "E")], 0.0);
+
+		final long hits = cache.getHitCount();
+		final long misses = cache.getMissCount();
+		step(state, stddev, 0, 0.5);
+		assertEquals(hits + 1, cache.getHitCount());
+		assertEquals(misses, cache.getMissCount());
+		assertArrayEquals(ratesA, rates(model, tree), 0.0);
+	}
+
+	@Test
+	public void testParallelFillMatchesSequential() {
+		for (int threshold : new int[] {1, 3}) {
+			// three rows of 4 quantiles, so tasks split both rows and categories within a row
+			Tree tree = new TreeParser(caterpillar(20), false, false, true, 0);
+			CladeIndexTest.clade(tree, "first5", taxa(5));
+			CladeIndexTest.clade(tree, "first10", taxa(10));
+			RealParameter stddev = new RealParameter("0.5");
+			MultiRelaxedClockModel2 model = new MultiRelaxedClockModel2();
+			model.initByName("tree", tree, "stddev", stddev, "rateCategories", new IntegerParameter("0"),
+					"clock.rate", new RealParameter("1.0"), "numberOfDiscreteRates", 4,
+					"parallelTables", true, "parallelThreshold", threshold);
+			State state = createState(model, tree, stddev);
+			// clocks use most of their 4 categories, so rows are dense from first use on
+			assertArrayEquals(rates(sequential(tree, stddev), tree), rates(model, tree), 0.0);
+
+			for (int i = 1; i <= 5; i++) {
+				// a new stddev for every clock, so all rows are filled at once
+				state.store(sample++);
+				for (int k = 0; k < stddev.getDimension(); k++) {
+					stddev.setValue(k, 0.5 + 0.1 * i + 0.01 * k);
+				}
+				state.storeCalculationNodes();
+				state.checkCalculationNodesDirtiness();
+				state.acceptCalculationNodes();
+				state.setEverythingDirty(false);
+				assertArrayEquals("threshold " + threshold + " step " + i, 
+						rates(sequential(tree, stddev), tree), rates(model, tree), 0.0);
+			}
+		}
+	}
+
+	/** model with 4 rates per clock for the current values of stddev that fills its rate tables one category at a time **/
+	static MultiRelaxedClockModel2 sequential(Tree tree, RealParameter stddev) {
+		Double [] values = new Double[stddev.getDimension()];
+		for (int k = 0; k < values.length; k++) {
+			values[k] = stddev.getArrayValue(k);
+		}
+		MultiRelaxedClockModel2 model = new MultiRelaxedClockModel2();
+		model.initByName("tree", tree, "stddev", new RealParameter(values), 
+				"rateCategories", new IntegerParameter("0"), "clock.rate", new RealParameter("1.0"), "numberOfDiscreteRates", 4);
+		return model;
+	}
+
+	/** state with the clock model as posterior, as ClockModelCases sets it up **/
+	static State createState(MultiRelaxedClockModel2 model, StateNode... stateNodes) {
+		State state = new State();
+		for (StateNode stateNode : stateNodes) {
+			state.stateNodeInput.setValue(stateNode, state);
+		}
+		state.initAndValidate();
+		state.initialise();
+		state.setPosterior(model);
+		state.setEverythingDirty(false);
+		return state;
+	}
+
+	/** accepted MCMC step proposing value for dimension i of parameter **/
+	void step(State state, RealParameter parameter, int i, double value) {
+		state.store(sample++);
+		parameter.setValue(i, value);
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+		state.acceptCalculationNodes();
+		state.setEverythingDirty(false);
+	}
+
+	/** (((t0,t1),t2),...) with all leaves at height 0 **/
+	static String caterpillar(int taxonCount) {
+		String newick = "t0:1";
+		for (int i = 1; i < taxonCount; i++) {
+			newick = "(" + newick + ",t" + i + ":" + i + "):1";
+		}
+		return newick.substring(0, newick.length() - 2) + ";";
+	}
+
+	static String [] taxa(int taxonCount) {
+		String [] taxa = new String[taxonCount];
+		for (int i = 0; i < taxonCount; i++) {
+			taxa[i] = "t" + i;
+		}
+		return taxa;
+	}
+
+	static double [] rates(MultiRelaxedClockModel2 model, Tree tree) {
+		double [] rates = new double[tree.getNodeCount()];
+		model.getRatesForAllBranches(rates);
+		return rates;
+	}
+}
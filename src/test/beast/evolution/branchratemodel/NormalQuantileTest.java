@@ -0,0 +1,151 @@
+package test.beast.evolution.branchratemodel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.apache.commons.math.MathException;
+import org.apache.commons.math.distribution.NormalDistributionImpl;
+import org.junit.Test;
+
+import beast.evolution.branchratemodel.NormalQuantile;
+
+/**
+ * Checks AS241 against the iterative solver of commons-math it replaces, in the centre,
+ * in both tails and at the end points, and that the batch version used for rate tables
+ * gives exactly the values of the scalar one. The batch version goes through the Vector API
+ * when the tests run with the jdk.incubator.vector module, as the junit target does on Java 16
+ * and later.
+ */
+public class NormalQuantileTest {
+	final static NormalDistributionImpl NORMAL = new NormalDistributionImpl(0, 1);
+
+	@Test
+	public void testCentral() throws MathException {
+		for (int i = 1; i < 1000; i++) {
+			assertMatchesReference(i / 1000.0);
+		}
+		assertMatchesReference(0.075);
+		assertMatchesReference(0.925);
+		assertEquals(0.0, NormalQuantile.inverse(0.5), 0.0);
+		assertEquals(1.959963984540054, NormalQuantile.inverse(0.975), 1e-15);
+	}
+
+	@Test
+	public void testLowerTail() throws MathException {
+		for (double p = 1e-3; p >= 1e-15; p /= 10) {
+			assertMatchesReference(p);
+			assertMatchesReference(3 * p);
+		}
+		assertTrue(NormalQuantile.inverse(1e-300) < NormalQuantile.inverse(1e-200));
+		assertTrue(NormalQuantile.inverse(Double.MIN_VALUE) > Double.NEGATIVE_INFINITY);
+	}
+
+	@Test
+	public void testUpperTail() throws MathException {
+		for (double q = 1e-3; q >= 1e-15; q /= 10) {
+			assertMatchesReference(1 - q);
+			assertMatchesReference(1 - 3 * q);
+		}
+		assertTrue(NormalQuantile.inverse(Math.nextDown(1.0)) < Double.POSITIVE_INFINITY);
+	}
+
+	@Test
+	public void testFarTails() {
+		// beyond 1e-10 the reference is only good to a few digits, so check p is the tail probability at x
+		for (double p = 1e-11; p >= 1e-300; p /= 7) {
+			final double x = NormalQuantile.inverse(p);
+			assertEquals("p = " + p, 1.0, upperTail(-x) / p, 1e-11);
+			final double q = 1 - (1 - p);
+			if (q > 0) {
+				final double y = NormalQuantile.inverse(1 - p);
+				assertEquals("p = 1 - " + q, 1.0, upperTail(y) / q, 1e-11);
+			}
+		}
+	}
+
+	@Test
+	public void testEndPoints() throws MathException {
+		assertEquals(Double.NEGATIVE_INFINITY, NormalQuantile.inverse(0), 0.0);
+		assertEquals(Double.POSITIVE_INFINITY, NormalQuantile.inverse(1), 0.0);
+		assertEquals(NORMAL.inverseCumulativeProbability(0), NormalQuantile.inverse(0), 0.0);
+		assertEquals(NORMAL.inverseCumulativeProbability(1), NormalQuantile.inverse(1), 0.0);
+	}
+
+	@Test
+	public void testSymmetry() {
+		// p and 1 - p are both exact for multiples of 1/1024
+		for (int i = 1; i < 512; i++) {
+			final double p = i / 1024.0;
+			assertEquals(-NormalQuantile.inverse(1 - p), NormalQuantile.inverse(p), 0.0);
+		}
+	}
+
+	@Test
+	public void testBatchMatchesScalar() {
+		for (int size : new int[] {1, 2, 3, 10, 13, 100, 1000, 4096}) {
+			assertBatchMatchesScalar(size, 0, size, 0);
+			assertBatchMatchesScalar(size, size / 3, size - size / 4, 7);
+		}
+		// every number of categories left over after the vector lanes, wherever the range starts
+		for (int from = 0; from < 8; from++) {
+			for (int to = from; to < from + 40; to++) {
+				assertBatchMatchesScalar(100, from + 40, to + 40, 1);
+			}
+		}
+		// the first and last categories of a big table are in the tails, with p near 2.3e-10
+		assertBatchMatchesScalar(Integer.MAX_VALUE, 0, 16, 0);
+		assertBatchMatchesScalar(Integer.MAX_VALUE, Integer.MAX_VALUE - 16, Integer.MAX_VALUE, 3);
+	}
+
+	@Test
+	public void testBatchMatchesReference() throws MathException {
+		final int size = 1000;
+		final double [] x = new double[size];
+		NormalQuantile.inverse(size, 0, size, x, 0);
+		for (int i = 0; i < size; i++) {
+			final double p = (i + 0.5) / size;
+			final double expected = NORMAL.inverseCumulativeProbability(p);
+			assertEquals("p = " + p, expected, x[i], tolerance(expected));
+		}
+	}
+
+	/** x[offset + i] for i in [from, to) is compared, and entries outside that range must stay untouched **/
+	static void assertBatchMatchesScalar(int size, int from, int to, int offset) {
+		final double [] x = new double[offset + to - from + 2];
+		Arrays.fill(x, Double.NaN);
+		NormalQuantile.inverse(size, from, to, x, offset - from);
+		for (int i = from; i < to; i++) {
+			final double p = (i + 0.5) / size;
+			assertEquals("size " + size + " category " + i, NormalQuantile.inverse(p), x[offset + i - from], 0.0);
+		}
+		for (int k = 0; k < offset; k++) {
+			assertTrue(Double.isNaN(x[k]));
+		}
+		assertTrue(Double.isNaN(x[offset + to - from]));
+	}
+
+	static void assertMatchesReference(double p) throws MathException {
+		final double expected = NORMAL.inverseCumulativeProbability(p);
+		assertEquals("p = " + p, expected, NormalQuantile.inverse(p), tolerance(expected));
+	}
+
+	/** P(X > x) for x > 3 by Laplace's continued fraction, to about 1 part in 10^15 **/
+	static double upperTail(double x) {
+		double f = x;
+		for (int k = 300; k >= 1; k--) {
+			f = x + k / f;
+		}
+		return Math.exp(-0.5 * x * x) / Math.sqrt(2 * Math.PI) / f;
+	}
+
+	/**
+	 * commons-math stops its solver once x is within 1e-9 of the root (1e-6 in older versions),
+	 * or once the CDF is within 1e-15 of p, which in the tails, where the density is tiny,
+	 * leaves x far less certain than AS241
+	 */
+	static double tolerance(double x) {
+		return 1e-6 + 1e-14 / NORMAL.density(x);
+	}
+}
@@ -0,0 +1,122 @@
+package test.beast.evolution.branchratemodel.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import beast.evolution.branchratemodel.MultiClock;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+
+/**
+ * JMH benchmarks of the clock models in beast.evolution.branchratemodel, to hold performance changes against.
+ *
+ * For every combination of number of tips and number of clades, a random tree is built with
+ * that many monophyletic clades, see ClockModelCases, and the model is set up on it, with
+ * normalisation switched on where the model supports it. Benchmarks are
+ * <ul>
+ * <li>rates: getRateForBranch() of every branch</li>
+ * <li>parameterStep: MCMC step proposing a new value for a clock parameter, which makes the model
+ * rebuild its rate table in prepare()</li>
+ * <li>heightStep: MCMC step proposing a new node height, which for the relaxed clocks only changes
+ * the scale factor in computeFactor()</li>
+ * <li>initialise: MultiClock.initialise(), resolving all clades in the tree, which does nothing for
+ * UCRelaxedClocWithFreeRatesModel</li>
+ * </ul>
+ * Steps go through State the way MCMC does, and accept or reject at random with equal probability.
+ * Their time includes the proposal, which is small next to the clock model. For the time spent in
+ * prepare(), computeFactor(), store() and restore(), run ProposalReplay with -Dmulticlock.counters=true.
+ * Clade counts above tips - 2 are capped there, since there are not enough internal nodes for them.
+ *
+ * Run with "ant benchmark -Dbenchmark.args=BranchRateModelBenchmark", where benchmark.args takes the
+ * usual JMH options, e.g. "BranchRateModelBenchmark.heightStep -p tips=1000,10000 -p model=MultiRelaxedClockModel3".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BranchRateModelBenchmark {
+
+	@Param({"100", "1000", "10000", "100000"})
+	public int tips;
+
+	@Param({"1", "10", "100", "500"})
+	public int clades;
+
+	@Param({"MultiStrictClockModel", "MultiRelaxedClockModel", "MultiRelaxedClockModel2",
+			"MultiRelaxedClockModel3", "MultiRelaxedClockModel4", "UCRelaxedClocWithFreeRatesModel"})
+	public String model;
+
+	ClockModelCases cases;
+	ClockModelCases.Case c;
+	beast.core.State state;
+	long sample = 0;
+	Tree tree;
+
+	@Setup
+	public void setUp() {
+		cases = new ClockModelCases(tips, Math.min(clades, tips - 2), 127);
+		c = cases.createCase(model);
+		state = ClockModelCases.createState(c);
+		tree = cases.tree;
+	}
+
+	/** one MCMC step, accepted or rejected at random **/
+	void step(boolean heightMove) {
+		state.store(sample++);
+		if (heightMove) {
+			cases.proposeHeight();
+		} else {
+			cases.proposeParameter(c.parameter);
+		}
+		state.storeCalculationNodes();
+		state.checkCalculationNodesDirtiness();
+		if (cases.random.nextBoolean()) {
+			state.acceptCalculationNodes();
+		} else {
+			state.restore();
+			state.restoreCalculationNodes();
+		}
+		state.setEverythingDirty(false);
+	}
+
+	@Benchmark
+	public void rates(Blackhole blackhole) {
+		for (int i = 0; i < tree.getNodeCount(); i++) {
+			Node node = tree.getNode(i);
+			if (!node.isRoot()) {
+				blackhole.consume(c.model.getRateForBranch(node));
+			}
+		}
+	}
+
+	@Benchmark
+	public void parameterStep() {
+		step(false);
+	}
+
+	@Benchmark
+	public void heightStep() {
+		step(true);
+	}
+
+	@Benchmark
+	public void initialise(Blackhole blackhole) {
+		if (c.model instanceof MultiClock && !cases.clades.isEmpty()) {
+			blackhole.consume(((MultiClock) c.model).initialise(cases.clades));
+		}
+	}
+}
@@ -0,0 +1,386 @@
+package test.beast.evolution.branchratemodel.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import beast.evolution.alignment.Taxon;
+import beast.evolution.alignment.TaxonSet;
+import beast.evolution.branchratemodel.MultiClock;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import beast.math.distributions.MRCAPrior;
+
+/**
+ * JMH benchmarks of resolving clades to tree nodes through MultiClock, which is done once at
+ * start up, against the recursive collectCladeNodes() it replaced, which scales with taxa times clades.
+ *
+ * Covers balanced and caterpillar trees, and three kinds of clade sets:
+ * <ul>
+ * <li>random: distinct random internal nodes, so some clades are nested by chance</li>
+ * <li>disjoint: no clade contains another</li>
+ * <li>nested: clades on a single path from root to leaf, so every clade contains all clades after it</li>
+ * </ul>
+ * The nesting depth of each clade set, i.e. the largest number of clades containing a single node,
+ * is printed at set up. Benchmarks are
+ * <ul>
+ * <li>initialise: MultiClock.initialise() for all clades</li>
+ * <li>getCladeIDS: MultiClock.getCladeIDS() for all clades</li>
+ * <li>recursiveCladeIDS: getCladeIDS() as it was before CladeIndex, once per clade, see RecursiveCladeIDS</li>
+ * </ul>
+ * Set up checks the baseline resolves every clade to the same nodes as CladeIndex, apart from
+ * a defect of the old recursion: internal nodes outside the clade with fewer tips below them
+ * than the clade has taxa are listed as well.
+ * Clade counts above tips - 2 are capped, since there are not enough internal nodes for them.
+ * For allocation per call, add the "-prof gc" option.
+ *
+ * The recursion goes as deep as the tree, so benchmarks fork with a large thread stack to allow for
+ * caterpillar trees with many taxa.
+ *
+ * Run with "ant benchmark -Dbenchmark.args=CladeResolutionBenchmark", where benchmark.args takes the
+ * usual JMH options, e.g. "CladeResolutionBenchmark -p shape=caterpillar -p tips=1000,10000".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xss1g")
+public class CladeResolutionBenchmark {
+
+	@Param({"1000", "10000", "30000"})
+	public int tips;
+
+	@Param({"10", "100", "400"})
+	public int clades;
+
+	@Param({"balanced", "caterpillar"})
+	public String shape;
+
+	@Param({"random", "disjoint", "nested"})
+	public String cladeSet;
+
+	Random random;
+	Tree tree;
+	List<MRCAPrior> cladeList;
+	final MultiClock multiClock = new MultiClock() {};
+	RecursiveCladeIDS baseline;
+
+	@Setup
+	public void setUp() {
+		random = new Random(127);
+		tree = shape.equals("caterpillar") ? caterpillarTree(tips) : balancedTree(tips);
+		int cladeCount = Math.min(clades, tips - 2);
+		List<Node> mrcas;
+		switch (cladeSet) {
+		case "disjoint": mrcas = disjointMRCAs(cladeCount); break;
+		case "nested": mrcas = nestedMRCAs(cladeCount); break;
+		default: mrcas = randomMRCAs(cladeCount); break;
+		}
+		cladeList = new ArrayList<>();
+		for (Node mrca : mrcas) {
+			cladeList.add(createClade(mrca, "clade" + cladeList.size()));
+		}
+		baseline = new RecursiveCladeIDS(tree);
+		checkBaseline(mrcas);
+		System.out.println("clades: " + cladeList.size() + ", nesting depth: " + nestingDepth());
+	}
+
+	private List<Node> createLeaves(int tipCount) {
+		List<Node> leaves = new ArrayList<>();
+		for (int i = 0; i < tipCount; i++) {
+			Node leaf = new Node("t" + i);
+			leaf.setNr(i);
+			leaf.setHeight(0);
+			leaves.add(leaf);
+		}
+		return leaves;
+	}
+
+	private Node join(Node left, Node right, int nr) {
+		Node parent = new Node();
+		parent.setNr(nr);
+		parent.addChild(left);
+		parent.addChild(right);
+		parent.setHeight(Math.max(left.getHeight(), right.getHeight()) + 1);
+		return parent;
+	}
+
+	/** tree where subtrees are joined level by level, so every leaf is about log2(tips) from the root **/
+	Tree balancedTree(int tipCount) {
+		List<Node> level = createLeaves(tipCount);
+		int nr = tipCount;
+		while (level.size() > 1) {
+			List<Node> next = new ArrayList<>();
+			for (int i = 0; i + 1 < level.size(); i += 2) {
+				next.add(join(level.get(i), level.get(i + 1), nr++));
+			}
+			if (level.size() % 2 == 1) {
+				next.add(level.get(level.size() - 1));
+			}
+			level = next;
+		}
+		return new Tree(level.get(0));
+	}
+
+	/** tree where every internal node has a leaf as one of its children **/
+	Tree caterpillarTree(int tipCount) {
+		List<Node> leaves = createLeaves(tipCount);
+		Node node = leaves.get(0);
+		for (int i = 1; i < tipCount; i++) {
+			node = join(node, leaves.get(i), tipCount + i - 1);
+		}
+		return new Tree(node);
+	}
+
+	/** internal nodes other than the root, in random order **/
+	private List<Node> shuffledInternalNodes() {
+		List<Node> nodes = new ArrayList<>();
+		for (int i = tree.getLeafNodeCount(); i < tree.getNodeCount(); i++) {
+			if (!tree.getNode(i).isRoot()) {
+				nodes.add(tree.getNode(i));
+			}
+		}
+		for (int i = nodes.size() - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			Node tmp = nodes.get(i);
+			nodes.set(i, nodes.get(j));
+			nodes.set(j, tmp);
+		}
+		return nodes;
+	}
+
+	List<Node> randomMRCAs(int cladeCount) {
+		List<Node> nodes = shuffledInternalNodes();
+		return new ArrayList<>(nodes.subList(0, Math.min(cladeCount, nodes.size())));
+	}
+
+	List<Node> disjointMRCAs(int cladeCount) {
+		boolean [] taken = new boolean[tree.getNodeCount()];
+		List<Node> mrcas = new ArrayList<>();
+		for (Node node : shuffledInternalNodes()) {
+			if (mrcas.size() == cladeCount) {
+				break;
+			}
+			boolean overlaps = false;
+			for (Node n = node; n != null && !overlaps; n = n.getParent()) {
+				overlaps = taken[n.getNr()];
+			}
+			if (!overlaps && !containsTaken(node, taken)) {
+				mrcas.add(node);
+				taken[node.getNr()] = true;
+			}
+		}
+		return mrcas;
+	}
+
+	private boolean containsTaken(Node node, boolean [] taken) {
+		List<Node> stack = new ArrayList<>();
+		stack.add(node);
+		while (!stack.isEmpty()) {
+			Node n = stack.remove(stack.size() - 1);
+			if (taken[n.getNr()]) {
+				return true;
+			}
+			for (int i = 0; i < n.getChildCount(); i++) {
+				stack.add(n.getChild(i));
+			}
+		}
+		return false;
+	}
+
+	/** internal nodes on the path from the root to a random leaf, spread evenly over the path **/
+	List<Node> nestedMRCAs(int cladeCount) {
+		List<Node> path = new ArrayList<>();
+		Node node = tree.getNode(random.nextInt(tree.getLeafNodeCount())).getParent();
+		while (node != null && !node.isRoot()) {
+			path.add(node);
+			node = node.getParent();
+		}
+		List<Node> mrcas = new ArrayList<>();
+		int count = Math.min(cladeCount, path.size());
+		for (int i = 0; i < count; i++) {
+			mrcas.add(path.get(path.size() - 1 - (int) ((long) i * path.size() / count)));
+		}
+		return mrcas;
+	}
+
+	MRCAPrior createClade(Node mrca, String id) {
+		List<Taxon> taxa = new ArrayList<>();
+		for (Node leaf : mrca.getAllLeafNodes()) {
+			taxa.add(new Taxon(leaf.getID()));
+		}
+		MRCAPrior clade = new MRCAPrior();
+		clade.setID(id);
+		clade.initByName("tree", tree, "taxonset", new TaxonSet(taxa), "monophyletic", true);
+		return clade;
+	}
+
+	/** largest number of clades containing a single node **/
+	int nestingDepth() {
+		int [] count = new int[tree.getNodeCount()];
+		for (List<Integer> cladeIDs : multiClock.getCladeIDS(cladeList)) {
+			for (int i : cladeIDs) {
+				count[i]++;
+			}
+		}
+		int depth = 0;
+		for (int c : count) {
+			depth = Math.max(depth, c);
+		}
+		return depth;
+	}
+
+	/**
+	 * throws if the baseline resolves a clade to other nodes than MultiClock does, where nodes outside
+	 * the clade that the old recursion also listed are left out of the comparison
+	 */
+	void checkBaseline(List<Node> mrcas) {
+		List<List<Integer>> cladeIDs = multiClock.getCladeIDS(cladeList);
+		for (int k = 0; k < cladeList.size(); k++) {
+			Node mrca = mrcas.get(k);
+			int taxonCount = mrca.getLeafNodeCount();
+			Set<Integer> expected = new HashSet<>(cladeIDs.get(k));
+			boolean [] below = new boolean[tree.getNodeCount()];
+			for (Node node : mrca.getAllChildNodesAndSelf()) {
+				below[node.getNr()] = true;
+			}
+			Set<Integer> inClade = new HashSet<>();
+			for (int i : baseline.getCladeIDS(cladeList.get(k))) {
+				Node node = tree.getNode(i);
+				if (below[i]) {
+					inClade.add(i);
+				} else if (node.isLeaf() || node.getLeafNodeCount() >= taxonCount) {
+					throw new IllegalStateException("baseline puts node " + i + " in clade " + k + " for other reasons than the known defect");
+				}
+			}
+			if (!inClade.equals(expected)) {
+				throw new IllegalStateException("baseline resolves clade " + k + " to " + inClade.size() + " nodes instead of " + expected.size());
+			}
+		}
+	}
+
+	@Benchmark
+	public void initialise(Blackhole blackhole) {
+		blackhole.consume(multiClock.initialise(cladeList));
+	}
+
+	@Benchmark
+	public void getCladeIDS(Blackhole blackhole) {
+		blackhole.consume(multiClock.getCladeIDS(cladeList));
+	}
+
+	@Benchmark
+	public void recursiveCladeIDS(Blackhole blackhole) {
+		for (MRCAPrior clade : cladeList) {
+			blackhole.consume(baseline.getCladeIDS(clade));
+		}
+	}
+
+	/**
+	 * MultiClock.getCladeIDS() and collectCladeNodes() for a single clade as they were before CladeIndex,
+	 * kept as the baseline to compare against. The only change is that taxa are looked up in a map
+	 * instead of with List.indexOf(), which made the old code quadratic in the number of taxa for big
+	 * clades and would make large cases take minutes per call, so the baseline understates the old cost.
+	 */
+	static class RecursiveCladeIDS {
+		final Map<String, Integer> taxonNrs = new HashMap<>();
+
+		RecursiveCladeIDS(Tree tree) {
+			String [] taxaNames = tree.getTaxaNames();
+			for (int i = 0; i < taxaNames.length; i++) {
+				taxonNrs.put(taxaNames[i], i);
+			}
+		}
+
+		/** returns list of node numbers of nodes in the clade **/
+		List<Integer> getCladeIDS(MRCAPrior clade) {
+			// array of flags to indicate which taxa are in the set
+			boolean[] isInTaxaSet;
+			// array of indices of taxa
+			int[] taxonIndex;
+			int nrOfTaxa;
+
+			Tree tree = clade.treeInput.get();
+			final List<String> sTaxaNames = new ArrayList<String>();
+			for (final String sTaxon : tree.getTaxaNames()) {
+				sTaxaNames.add(sTaxon);
+			}
+			// determine nr of taxa in taxon set
+			List<String> set = null;
+			if (clade.taxonsetInput.get() != null) {
+				set = clade.taxonsetInput.get().asStringList();
+				nrOfTaxa = set.size();
+			} else {
+				// assume all taxa
+				nrOfTaxa = sTaxaNames.size();
+			}
+
+			// determine which taxa are in the set
+			taxonIndex = new int[nrOfTaxa];
+			isInTaxaSet = new boolean[sTaxaNames.size()];
+			int k = 0;
+			for (final String sTaxon : set) {
+				final Integer iTaxon = taxonNrs.get(sTaxon);
+				if (iTaxon == null) {
+					throw new RuntimeException("Cannot find taxon " + sTaxon + " in data");
+				}
+				if (isInTaxaSet[iTaxon]) {
+					throw new RuntimeException("Taxon " + sTaxon + " is defined multiple times, while they should be unique");
+				}
+				isInTaxaSet[iTaxon] = true;
+				taxonIndex[k++] = iTaxon;
+			}
+			List<Integer> list = new ArrayList<>();
+			collectCladeNodes(tree.getRoot(), new int[1], list, isInTaxaSet, nrOfTaxa);
+			return list;
+		}
+
+		/** recurse through tree and collect nodes in a clade **/
+		int collectCladeNodes(final Node node, final int[] nTaxonCount, List<Integer> list, final boolean [] isInTaxaSet, final int nrOfTaxa) {
+			if (node.isLeaf()) {
+				nTaxonCount[0]++;
+				if (isInTaxaSet[node.getNr()]) {
+					list.add(node.getNr());
+					return 1;
+				} else {
+					return 0;
+				}
+			} else {
+				int iTaxons = collectCladeNodes(node.getLeft(), nTaxonCount, list, isInTaxaSet, nrOfTaxa);
+				final int nLeftTaxa = nTaxonCount[0];
+				nTaxonCount[0] = 0;
+				if (node.getRight() != null) {
+					iTaxons += collectCladeNodes(node.getRight(), nTaxonCount, list, isInTaxaSet, nrOfTaxa);
+					final int nRightTaxa = nTaxonCount[0];
+					nTaxonCount[0] = nLeftTaxa + nRightTaxa;
+					if (iTaxons == nrOfTaxa) {
+						return iTaxons + 1;
+					}
+					if (nTaxonCount[0] > 0 && nTaxonCount[0] < nrOfTaxa) {
+						list.add(node.getNr());
+					}
+				}
+				return iTaxons;
+			}
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package test.beast.evolution.branchratemodel.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import beast.core.State;
+import beast.core.StateNode;
+import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.Taxon;
+import beast.evolution.alignment.TaxonSet;
+import beast.evolution.branchratemodel.BranchRateModel;
+import beast.evolution.branchratemodel.LogNormalImpl;
+import beast.evolution.branchratemodel.MultiRelaxedClockModel;
+import beast.evolution.branchratemodel.MultiRelaxedClockModel2;
+import beast.evolution.branchratemodel.MultiRelaxedClockModel3;
+import beast.evolution.branchratemodel.MultiRelaxedClockModel4;
+import beast.evolution.branchratemodel.MultiStrictClockModel;
+import beast.evolution.branchratemodel.UCRelaxedClocWithFreeRatesModel;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import beast.math.distributions.LogNormalDistributionModel;
+import beast.math.distributions.MRCAPrior;
+
+/**
+ * Random tree with monophyletic clades, and every clock model in beast.evolution.branchratemodel
+ * set up on it, as used by BranchRateModelBenchmark and ProposalReplay. Normalisation is switched
+ * on where the model supports it.
+ */
+public class ClockModelCases {
+
+	/** a clock model set up on a tree, with the parameter proposals change **/
+	static class Case {
+		final String name;
+		final BranchRateModel.Base model;
+		final RealParameter parameter;
+		final StateNode [] stateNodes;
+
+		Case(String name, BranchRateModel.Base model, RealParameter parameter, StateNode... stateNodes) {
+			this.name = name;
+			this.model = model;
+			this.parameter = parameter;
+			this.stateNodes = stateNodes;
+		}
+	}
+
+	final Tree tree;
+	final List<MRCAPrior> clades;
+	final Random random;
+
+	public ClockModelCases(int tipCount, int cladeCount, long seed) {
+		random = new Random(seed);
+		tree = randomTree(tipCount);
+		clades = randomClades(cladeCount);
+	}
+
+	/** random tree, built by joining random pairs of subtrees, so it is fairly balanced even for many tips **/
+	Tree randomTree(int tipCount) {
+		List<Node> pool = new ArrayList<>();
+		for (int i = 0; i < tipCount; i++) {
+			Node leaf = new Node("t" + i);
+			leaf.setNr(i);
+			leaf.setHeight(0);
+			pool.add(leaf);
+		}
+		int nr = tipCount;
+		while (pool.size() > 1) {
+			Node left = removeRandom(pool);
+			Node right = removeRandom(pool);
+			Node parent = new Node();
+			parent.setNr(nr++);
+			parent.addChild(left);
+			parent.addChild(right);
+			parent.setHeight(Math.max(left.getHeight(), right.getHeight()) + 0.1 + random.nextDouble());
+			pool.add(parent);
+		}
+		return new Tree(pool.get(0));
+	}
+
+	private Node removeRandom(List<Node> pool) {
+		int i = random.nextInt(pool.size());
+		Node node = pool.get(i);
+		pool.set(i, pool.get(pool.size() - 1));
+		pool.remove(pool.size() - 1);
+		return node;
+	}
+
+	/** clades of distinct random internal nodes below the root, which are monophyletic by construction **/
+	List<MRCAPrior> randomClades(int cladeCount) {
+		int leafCount = tree.getLeafNodeCount();
+		List<Integer> candidates = new ArrayList<>();
+		for (int i = leafCount; i < tree.getNodeCount(); i++) {
+			if (!tree.getNode(i).isRoot()) {
+				candidates.add(i);
+			}
+		}
+		List<MRCAPrior> clades = new ArrayList<>();
+		for (int c = 0; c < cladeCount && !candidates.isEmpty(); c++) {
+			int i = random.nextInt(candidates.size());
+			Node node = tree.getNode(candidates.get(i));
+			candidates.set(i, candidates.get(candidates.size() - 1));
+			candidates.remove(candidates.size() - 1);
+
+			List<Taxon> taxa = new ArrayList<>();
+			List<Node> stack = new ArrayList<>();
+			stack.add(node);
+			while (!stack.isEmpty()) {
+				Node n = stack.remove(stack.size() - 1);
+				if (n.isLeaf()) {
+					taxa.add(new Taxon(n.getID()));
+				}
+				for (int j = 0; j < n.getChildCount(); j++) {
+					stack.add(n.getChild(j));
+				}
+			}
+			MRCAPrior clade = new MRCAPrior();
+			clade.setID("clade" + c);
+			clade.initByName("tree", tree, "taxonset", new TaxonSet(taxa), "monophyletic", true);
+			clades.add(clade);
+		}
+		return clades;
+	}
+
+	final static String [] MODELS = {"MultiStrictClockModel", "MultiRelaxedClockModel", "MultiRelaxedClockModel2",
+			"MultiRelaxedClockModel3", "MultiRelaxedClockModel4", "UCRelaxedClocWithFreeRatesModel"};
+
+	/** sets up the model with the given class name on the tree **/
+	Case createCase(String name) {
+		switch (name) {
+		case "MultiStrictClockModel":
+			MultiStrictClockModel strict = new MultiStrictClockModel();
+			RealParameter firstClockRate = null;
+			for (MRCAPrior clade : clades) {
+				RealParameter clockRate = new RealParameter("1.0");
+				if (firstClockRate == null) {
+					firstClockRate = clockRate;
+				}
+				strict.clockRatesInput.setValue(clockRate, strict);
+				strict.cladesInput.setValue(clade, strict);
+			}
+			strict.initByName("baserate", new RealParameter("1.0"));
+			return new Case(name, strict, firstClockRate, tree, firstClockRate);
+
+		case "MultiRelaxedClockModel":
+			RealParameter s = new RealParameter("0.3");
+			LogNormalDistributionModel logNormal = new LogNormalDistributionModel();
+			logNormal.initByName("M", new RealParameter("1.0"), "S", s, "meanInRealSpace", true);
+			MultiRelaxedClockModel model1 = new MultiRelaxedClockModel();
+			model1.initByName("tree", tree, "distr", logNormal, "rateCategories", new IntegerParameter("0"),
+					"clock.rate", new RealParameter("1.0"), "normalize", true);
+			return new Case(name, model1, s, tree, s);
+
+		case "MultiRelaxedClockModel2":
+			RealParameter stddev2 = new RealParameter("0.3");
+			MultiRelaxedClockModel2 model2 = new MultiRelaxedClockModel2();
+			model2.initByName("tree", tree, "stddev", stddev2, "rateCategories", new IntegerParameter("0"),
+					"clock.rate", new RealParameter("1.0"), "normalize", true);
+			return new Case(name, model2, stddev2, tree, stddev2);
+
+		case "MultiRelaxedClockModel3":
+			RealParameter stddev3 = new RealParameter("0.3");
+			MultiRelaxedClockModel3 model3 = new MultiRelaxedClockModel3();
+			model3.initByName("tree", tree, "stddev", stddev3, "rateCategories", new IntegerParameter("0"),
+					"clock.rate", new RealParameter("1.0"), "normalize", true);
+			return new Case(name, model3, stddev3, tree, stddev3);
+
+		case "MultiRelaxedClockModel4":
+			RealParameter stddev4 = new RealParameter("0.3");
+			MultiRelaxedClockModel4 model4 = new MultiRelaxedClockModel4();
+			model4.initByName("tree", tree, "stddev", stddev4, "rateCategories", new IntegerParameter("0"),
+					"clock.rate", new RealParameter("1.0"), "normalize", true);
+			return new Case(name, model4, stddev4, tree, stddev4);
+
+		case "UCRelaxedClocWithFreeRatesModel":
+			// free rates start at the quantiles of a log-normal, so have mean 1
+			int rateCount = Math.max(clades.size() + 1, 100);
+			Double [] initialRates = new Double[rateCount];
+			for (int i = 0; i < rateCount; i++) {
+				initialRates[i] = LogNormalImpl.inverseCumulativeProbability((i + 0.5) / rateCount, 0.3);
+			}
+			RealParameter freeRates = new RealParameter(initialRates);
+			UCRelaxedClocWithFreeRatesModel uc = new UCRelaxedClocWithFreeRatesModel();
+			uc.initByName("tree", tree, "freeRates", freeRates, "rateCategories", new IntegerParameter("0"),
+					"clock.rate", new RealParameter("1.0"), "normalize", true);
+			return new Case(name, uc, freeRates, tree, freeRates);
+
+		default:
+			throw new IllegalArgumentException("Unknown model " + name + ", expected one of " + String.join(", ", MODELS));
+		}
+	}
+
+	/** puts the state nodes of c in a fresh state, with the clock model as posterior **/
+	static State createState(Case c) {
+		State state = new State();
+		for (StateNode stateNode : c.stateNodes) {
+			state.stateNodeInput.setValue(stateNode, state);
+		}
+		state.initAndValidate();
+		state.initialise();
+		state.setPosterior(c.model);
+		state.setEverythingDirty(false);
+		return state;
+	}
+
+	void proposeParameter(RealParameter parameter) {
+		int i = random.nextInt(parameter.getDimension());
+		parameter.setValue(i, parameter.getValue(i) * Math.exp(0.2 * (random.nextDouble() - 0.5)));
+	}
+
+	void proposeHeight() {
+		Node node;
+		do {
+			node = tree.getNode(tree.getLeafNodeCount() + random.nextInt(tree.getInternalNodeCount()));
+		} while (node.isRoot());
+		double lower = 0;
+		for (int i = 0; i < node.getChildCount(); i++) {
+			lower = Math.max(lower, node.getChild(i).getHeight());
+		}
+		double upper = node.getParent().getHeight();
+		node.setHeight(lower + (upper - lower) * random.nextDouble());
+	}
+}
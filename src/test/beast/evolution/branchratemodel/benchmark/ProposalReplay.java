@@ -0,0 +1,436 @@
+package test.beast.evolution.branchratemodel.benchmark;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import beast.core.State;
+import beast.core.StateNode;
+import beast.core.parameter.IntegerParameter;
+import beast.core.parameter.RealParameter;
+import beast.evolution.branchratemodel.BranchRateModel;
+import beast.evolution.branchratemodel.CladeIndex;
+import beast.evolution.branchratemodel.MultiRelaxedClockModel;
+import beast.evolution.branchratemodel.MultiRelaxedClockModel2;
+import beast.evolution.branchratemodel.MultiRelaxedClockModel3;
+import beast.evolution.branchratemodel.MultiRelaxedClockModel4;
+import beast.evolution.branchratemodel.MultiStrictClockModel;
+import beast.evolution.branchratemodel.UCRelaxedClocWithFreeRatesModel;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+
+/**
+ * Replays a stream of MCMC proposals on a clock model without any likelihood, so the
+ * cost of the clock model itself can be profiled and tuned on a reproducible workload.
+ *
+ * The tree and clades are set up by ClockModelCases, with a fixed seed. Proposals are
+ * <ul>
+ * <li>category: swap the rate categories of two branches or clocks</li>
+ * <li>stddev: scale the standard deviation of one clock</li>
+ * <li>meanRate: scale the mean rate of one clock</li>
+ * <li>height: move a node height uniformly between its children and parent</li>
+ * <li>slide: subtree slide, which moves the parent of a node up or down the tree, and changes
+ * the topology when it passes other nodes. Clades are not kept monophyletic by the proposal, but as
+ * under MCMC, where the MRCAPrior rejects it after the clock model recalculated, a slide that
+ * breaks a clade is always restored</li>
+ * </ul>
+ * drawn at random with the given weights, or read from a script file with one proposal name per
+ * line, which is replayed from the start when it runs out. Proposals a model has no parameter for
+ * are skipped.
+ *
+ * Every step goes through State the way MCMC does: store the state, propose, store calculation
+ * nodes, check their dirtiness (which calls requiresRecalculation()), check the clades are still
+ * monophyletic, and then accept or restore, with ACCEPT_PROBABILITY of accepting steps that kept
+ * all clades. Time spent in each phase is reported per proposal, after replaying the stream once
+ * to warm up, with restoring steps that broke a clade as a phase of its own.
+ *
+ * Usage: ProposalReplay [model [tips [clades [steps [proposals]]]]], where model is the class
+ * name of one of the clock models in beast.evolution.branchratemodel or "all", and proposals is either a comma separated
+ * list of name=weight, e.g. category=3,stddev=1,meanRate=1,height=2,slide=2 (the default),
+ * or @file for a script.
+ */
+public class ProposalReplay {
+	final static double ACCEPT_PROBABILITY = 0.25;
+
+	final static String [] PROPOSALS = {"category", "stddev", "meanRate", "height", "slide"};
+	final static int CATEGORY = 0, STDDEV = 1, MEAN_RATE = 2, HEIGHT = 3, SLIDE = 4;
+
+	final static String [] PHASES = {"store", "propose", "recalculate", "clades", "accept", "restore", "broken"};
+	final static int STORE = 0, PROPOSE = 1, RECALCULATE = 2, CLADES = 3, ACCEPT = 4, RESTORE = 5, BROKEN = 6;
+
+	/** size of subtree slide moves, relative to the height of the root **/
+	final static double SLIDE_SIZE = 0.05;
+
+	final ClockModelCases setup;
+	final Tree tree;
+	final Random random;
+	IntegerParameter categories;
+	RealParameter stddev;
+	/** parameters meanRate proposals pick from, for most models just the clock.rate **/
+	List<RealParameter> meanRates = new ArrayList<>();
+	State state;
+	long sample = 0;
+	/** clades of the tree, followed through slides to find those that break one, independent of the model **/
+	CladeIndex cladeIndex;
+
+	/** nano seconds per proposal and phase, and number of proposals and of phases that ran **/
+	long [][] nanos = new long[PROPOSALS.length][PHASES.length];
+	long [][] phaseCounts = new long[PROPOSALS.length][PHASES.length];
+	long [] counts = new long[PROPOSALS.length];
+	long [] skipped = new long[PROPOSALS.length];
+	long [] broken = new long[PROPOSALS.length];
+	/** nano seconds of each phase of the current step, every recorded phase is set before it is read **/
+	final long [] time = new long[PHASES.length];
+
+	public ProposalReplay(ClockModelCases setup, ClockModelCases.Case target) {
+		this.setup = setup;
+		this.tree = setup.tree;
+		this.random = setup.random;
+
+		BranchRateModel.Base model = target.model;
+		if (model instanceof MultiStrictClockModel) {
+			meanRates.addAll(((MultiStrictClockModel) model).clockRatesInput.get());
+			meanRates.add(((MultiStrictClockModel) model).baseRateInput.get());
+		} else {
+			meanRates.add(model.meanRateInput.get());
+		}
+		if (model instanceof MultiRelaxedClockModel) {
+			categories = ((MultiRelaxedClockModel) model).categoryInput.get();
+			stddev = target.parameter;
+		} else if (model instanceof MultiRelaxedClockModel2) {
+			categories = ((MultiRelaxedClockModel2) model).categoryInput.get();
+			stddev = target.parameter;
+		} else if (model instanceof MultiRelaxedClockModel3) {
+			categories = ((MultiRelaxedClockModel3) model).categoryInput.get();
+			stddev = target.parameter;
+		} else if (model instanceof MultiRelaxedClockModel4) {
+			categories = ((MultiRelaxedClockModel4) model).categoryInput.get();
+			stddev = target.parameter;
+		} else if (model instanceof UCRelaxedClocWithFreeRatesModel) {
+			categories = ((UCRelaxedClocWithFreeRatesModel) model).categoryInput.get();
+		}
+
+		List<StateNode> stateNodes = new ArrayList<>();
+		stateNodes.add(tree);
+		for (StateNode stateNode : target.stateNodes) {
+			if (!stateNodes.contains(stateNode)) {
+				stateNodes.add(stateNode);
+			}
+		}
+		if (categories != null && !stateNodes.contains(categories)) {
+			stateNodes.add(categories);
+		}
+		for (RealParameter meanRate : meanRates) {
+			if (meanRate != null && !stateNodes.contains(meanRate)) {
+				stateNodes.add(meanRate);
+			}
+		}
+		state = new State();
+		for (StateNode stateNode : stateNodes) {
+			state.stateNodeInput.setValue(stateNode, state);
+		}
+		state.initAndValidate();
+		state.initialise();
+		state.setPosterior(model);
+		state.setEverythingDirty(false);
+
+		cladeIndex = new CladeIndex(tree, setup.clades);
+		cladeIndex.initialise();
+		cladeIndex.store();
+	}
+
+	/** applies a proposal, returns false if it is not possible in the current state **/
+	boolean propose(int proposal) {
+		switch (proposal) {
+		case CATEGORY: return swapCategories();
+		case STDDEV: return scale(stddev);
+		case MEAN_RATE: return scale(meanRates.get(random.nextInt(meanRates.size())));
+		case HEIGHT: setup.proposeHeight(); return true;
+		default: return subtreeSlide();
+		}
+	}
+
+	/** whether the model has a parameter the proposal changes **/
+	boolean applies(int proposal) {
+		switch (proposal) {
+		case CATEGORY: return categories != null && categories.getDimension() > 1;
+		case STDDEV: return stddev != null;
+		case MEAN_RATE: return meanRates.get(0) != null;
+		default: return true;
+		}
+	}
+
+	boolean swapCategories() {
+		int i = random.nextInt(categories.getDimension());
+		int j = random.nextInt(categories.getDimension() - 1);
+		if (j >= i) {
+			j++;
+		}
+		Integer tmp = categories.getValue(i);
+		if (tmp.equals(categories.getValue(j))) {
+			return false;
+		}
+		categories.setValue(i, categories.getValue(j));
+		categories.setValue(j, tmp);
+		return true;
+	}
+
+	boolean scale(RealParameter parameter) {
+		int i = random.nextInt(parameter.getDimension());
+		parameter.setValue(i, parameter.getValue(i) * Math.exp(0.5 * (random.nextDouble() - 0.5)));
+		return true;
+	}
+
+	/**
+	 * moves the parent of a random node to a new height, attaching it to the lineage at that height.
+	 * Returns false if the parent would become the root or drop below the node.
+	 */
+	boolean subtreeSlide() {
+		Node node;
+		do {
+			node = tree.getNode(random.nextInt(tree.getNodeCount()));
+		} while (node.isRoot() || node.getParent().isRoot());
+		Node parent = node.getParent();
+		Node sibling = (parent.getLeft() == node ? parent.getRight() : parent.getLeft());
+		Node grandParent = parent.getParent();
+		double newHeight = parent.getHeight() + (random.nextDouble() - 0.5) * 2 * SLIDE_SIZE * tree.getRoot().getHeight();
+		if (newHeight <= node.getHeight()) {
+			return false;
+		}
+
+		// lineage at newHeight that parent will be attached to: newChild below newParent
+		Node newChild = sibling, newParent = grandParent;
+		if (newHeight > parent.getHeight()) {
+			while (newParent != null && newParent.getHeight() < newHeight) {
+				newChild = newParent;
+				newParent = newParent.getParent();
+			}
+			if (newParent == null) {
+				// would become the new root
+				return false;
+			}
+		} else {
+			List<Node> candidates = new ArrayList<>();
+			List<Node> stack = new ArrayList<>();
+			stack.add(sibling);
+			while (!stack.isEmpty()) {
+				Node n = stack.remove(stack.size() - 1);
+				if (n.getHeight() < newHeight) {
+					candidates.add(n);
+				} else {
+					for (int i = 0; i < n.getChildCount(); i++) {
+						stack.add(n.getChild(i));
+					}
+				}
+			}
+			newChild = candidates.get(random.nextInt(candidates.size()));
+			newParent = (newChild == sibling ? grandParent : newChild.getParent());
+		}
+
+		if (newChild != sibling) {
+			// take parent out, so sibling takes its place
+			replace(grandParent, parent, sibling);
+			parent.removeChild(sibling);
+			// and put it back on the new lineage
+			replace(newParent, newChild, parent);
+			parent.addChild(newChild);
+			newChild.setParent(parent);
+			parent.makeDirty(Tree.IS_FILTHY);
+		}
+		parent.setHeight(newHeight);
+		return true;
+	}
+
+	/** whether a clade is no longer monophyletic, so the MRCAPrior would reject the step under MCMC **/
+	boolean breaksClade() {
+		cladeIndex.update();
+		for (int i = 0; i < setup.clades.size(); i++) {
+			if (!cladeIndex.isMonophyletic(i)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** as TreeOperator.replace() **/
+	private void replace(Node node, Node child, Node replacement) {
+		node.removeChild(child);
+		node.addChild(replacement);
+		replacement.setParent(node);
+		node.makeDirty(Tree.IS_FILTHY);
+	}
+
+	void step(int proposal, boolean record) {
+		long start = System.nanoTime();
+		state.store(sample++);
+		time[STORE] = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		boolean possible = propose(proposal);
+		time[PROPOSE] = System.nanoTime() - start;
+		if (!possible) {
+			state.restore();
+			state.setEverythingDirty(false);
+			if (record) {
+				skipped[proposal]++;
+			}
+			return;
+		}
+
+		start = System.nanoTime();
+		state.storeCalculationNodes();
+		time[STORE] += System.nanoTime() - start;
+
+		start = System.nanoTime();
+		state.checkCalculationNodesDirtiness();
+		time[RECALCULATE] = System.nanoTime() - start;
+
+		// only slides change the topology
+		start = System.nanoTime();
+		boolean breaks = (proposal == SLIDE && breaksClade());
+		time[CLADES] = System.nanoTime() - start;
+
+		int last;
+		start = System.nanoTime();
+		if (!breaks && random.nextDouble() < ACCEPT_PROBABILITY) {
+			state.acceptCalculationNodes();
+			last = ACCEPT;
+		} else {
+			state.restore();
+			state.restoreCalculationNodes();
+			last = (breaks ? BROKEN : RESTORE);
+		}
+		state.setEverythingDirty(false);
+		time[last] = System.nanoTime() - start;
+		if (proposal == SLIDE) {
+			if (last != ACCEPT) {
+				cladeIndex.restore();
+			}
+			cladeIndex.store();
+		}
+
+		if (record) {
+			counts[proposal]++;
+			if (breaks) {
+				broken[proposal]++;
+			}
+			for (int phase = 0; phase < PHASES.length; phase++) {
+				if (phase <= RECALCULATE || (phase == CLADES && proposal == SLIDE) || phase == last) {
+					nanos[proposal][phase] += time[phase];
+					phaseCounts[proposal][phase]++;
+				}
+			}
+		}
+	}
+
+	/** replays proposals, and returns the number of steps per second **/
+	double replay(int [] proposals, boolean record) {
+		long start = System.nanoTime();
+		for (int proposal : proposals) {
+			if (applies(proposal)) {
+				step(proposal, record);
+			}
+		}
+		return proposals.length / ((System.nanoTime() - start) * 1e-9);
+	}
+
+	void report(String name, double stepsPerSecond) {
+		System.out.println(String.format("%s: %d tips, %d clades, %.0f steps/s", name,
+				tree.getLeafNodeCount(), setup.clades.size(), stepsPerSecond));
+		StringBuilder b = new StringBuilder(String.format("  %-10s %8s %8s %8s", "proposal", "steps", "skipped", "broken"));
+		for (String phase : PHASES) {
+			b.append(String.format(" %11s", phase + " us"));
+		}
+		System.out.println(b);
+		for (int proposal = 0; proposal < PROPOSALS.length; proposal++) {
+			if (counts[proposal] + skipped[proposal] == 0) {
+				continue;
+			}
+			b = new StringBuilder(String.format("  %-10s %8d %8d %8d", PROPOSALS[proposal], counts[proposal], skipped[proposal], broken[proposal]));
+			for (int phase = 0; phase < PHASES.length; phase++) {
+				double us = phaseCounts[proposal][phase] == 0 ? 0 : nanos[proposal][phase] / (1000.0 * phaseCounts[proposal][phase]);
+				b.append(String.format(" %11.2f", us));
+			}
+			System.out.println(b);
+		}
+	}
+
+	private static int proposalNumber(String name) {
+		for (int i = 0; i < PROPOSALS.length; i++) {
+			if (PROPOSALS[i].equals(name)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Unknown proposal " + name + ", expected one of " + String.join(", ", PROPOSALS));
+	}
+
+	/** proposals from a script file, one name per line, repeated to fill steps **/
+	static int [] readScript(String file, int steps) throws IOException {
+		List<Integer> script = new ArrayList<>();
+		try (BufferedReader fin = new BufferedReader(new FileReader(file))) {
+			String line;
+			while ((line = fin.readLine()) != null) {
+				line = line.trim();
+				if (line.length() > 0 && !line.startsWith("#")) {
+					script.add(proposalNumber(line));
+				}
+			}
+		}
+		if (script.isEmpty()) {
+			throw new IllegalArgumentException("No proposals in " + file);
+		}
+		int [] proposals = new int[steps];
+		for (int i = 0; i < steps; i++) {
+			proposals[i] = script.get(i % script.size());
+		}
+		return proposals;
+	}
+
+	/** proposals drawn at random with weights given as name=weight,... **/
+	static int [] randomProposals(String weightList, int steps, Random random) {
+		double [] weights = new double[PROPOSALS.length];
+		double sum = 0;
+		for (String str : weightList.split(",")) {
+			String [] strs = str.split("=");
+			double weight = strs.length > 1 ? Double.parseDouble(strs[1].trim()) : 1.0;
+			weights[proposalNumber(strs[0].trim())] = weight;
+			sum += weight;
+		}
+		int [] proposals = new int[steps];
+		for (int i = 0; i < steps; i++) {
+			double u = random.nextDouble() * sum;
+			int proposal = 0;
+			while (u >= weights[proposal] && proposal < PROPOSALS.length - 1) {
+				u -= weights[proposal];
+				proposal++;
+			}
+			proposals[i] = proposal;
+		}
+		return proposals;
+	}
+
+	public static void main(String[] args) throws IOException {
+		String modelName = args.length > 0 ? args[0] : "all";
+		int tipCount = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int cladeCount = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+		int steps = args.length > 3 ? Integer.parseInt(args[3]) : 100000;
+		String proposalList = args.length > 4 ? args[4] : "category=3,stddev=1,meanRate=1,height=2,slide=2";
+
+		int [] proposals = proposalList.startsWith("@") ?
+				readScript(proposalList.substring(1), steps) :
+				randomProposals(proposalList, steps, new Random(127));
+
+		String [] names = modelName.equals("all") ? ClockModelCases.MODELS : new String[] {modelName};
+		for (String name : names) {
+			// every model gets a fresh tree, so all replay the same stream from the same state
+			ClockModelCases setup = new ClockModelCases(tipCount, cladeCount, 127);
+			ProposalReplay replay = new ProposalReplay(setup, setup.createCase(name));
+			replay.replay(proposals, false);
+			// the warm up changed the state, but the stream is the same
+			replay.report(name, replay.replay(proposals, true));
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package test.beast.evolution.branchratemodel.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import beast.evolution.branchratemodel.LogNormalImpl;
+
+/**
+ * JMH benchmarks comparing filling a log-normal rate table one category at a time through
+ * LogNormalImpl.inverseCumulativeProbability(p, stddev) with the batch version, which fills
+ * a range of categories through the Vector API where available, see NormalQuantileVector.
+ *
+ * Both must give exactly the same table, which is checked at set up, since which of the two
+ * a clock model uses depends on how many categories are in use. Every call moves on to the
+ * next of 16 standard deviations, as a clock model would after a proposal.
+ *
+ * Run with "ant benchmark -Dbenchmark.args=QuantileBatchBenchmark", where benchmark.args takes the
+ * usual JMH options. On Java 16 and later the benchmark JVMs get the jdk.incubator.vector module;
+ * add "-jvmArgsAppend -Dmulticlock.vector=false" to time the batch version without it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QuantileBatchBenchmark {
+
+	@Param({"100", "1000", "10000", "100000"})
+	public int size;
+
+	double [] table;
+	double [] stddevs;
+	int next = 0;
+
+	@Setup
+	public void setUp() {
+		table = new double[size];
+		stddevs = new double[16];
+		for (int i = 0; i < stddevs.length; i++) {
+			stddevs[i] = 0.05 + 0.1 * i;
+		}
+		verify();
+	}
+
+	void fillScalar(double stddev) {
+		for (int i = 0; i < size; i++) {
+			table[i] = LogNormalImpl.inverseCumulativeProbability((i + 0.5) / size, stddev);
+		}
+	}
+
+	void fillBatch(double stddev) {
+		LogNormalImpl.inverseCumulativeProbability(stddev, size, 0, size, table, 0);
+	}
+
+	/** throws if the batch version gives a different table for any of the standard deviations **/
+	void verify() {
+		double [] expected = new double[size];
+		for (double stddev : stddevs) {
+			fillScalar(stddev);
+			System.arraycopy(table, 0, expected, 0, size);
+			fillBatch(stddev);
+			for (int i = 0; i < size; i++) {
+				if (Double.doubleToLongBits(expected[i]) != Double.doubleToLongBits(table[i])) {
+					throw new IllegalStateException("batch quantile differs for stddev " + stddev + " category " + i +
+							": " + expected[i] + " != " + table[i]);
+				}
+			}
+		}
+	}
+
+	double nextStddev() {
+		next = (next + 1) % stddevs.length;
+		return stddevs[next];
+	}
+
+	@Benchmark
+	public void scalar(Blackhole blackhole) {
+		fillScalar(nextStddev());
+		blackhole.consume(table);
+	}
+
+	@Benchmark
+	public void batch(Blackhole blackhole) {
+		fillBatch(nextStddev());
+		blackhole.consume(table);
+	}
+}
@@ -0,0 +1,115 @@
+package test.beast.evolution.branchratemodel.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmarks comparing a jagged double[clock][category] rate table with a flat
+ * double[clock * categoryCount + category] one, the layout MultiRelaxedClockModel2 uses,
+ * on the two loops that dominate the clock model: looking up the rate of every
+ * branch as getRateForBranch() does (branchRates), and summing rate times branch length
+ * as computeFactor() does.
+ *
+ * Branches are assigned to clocks and categories at random, so that consecutive
+ * branches touch different tables, as happens with many small clades.
+ *
+ * Run with "ant benchmark -Dbenchmark.args=RateTableLayoutBenchmark", where benchmark.args takes the
+ * usual JMH options, e.g. "RateTableLayoutBenchmark -p clockCount=500 -p categoryCount=100".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RateTableLayoutBenchmark {
+
+	@Param({"10", "100", "500"})
+	public int clockCount;
+
+	@Param({"10", "100"})
+	public int categoryCount;
+
+	@Param({"1000", "10000", "100000"})
+	public int branchCount;
+
+	double [][] jagged;
+	double [] flat;
+	int [] clockOfBranch;
+	int [] categoryOfBranch;
+	double [] branchLength;
+	double [] out;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(127);
+
+		jagged = new double[clockCount][];
+		flat = new double[clockCount * categoryCount];
+		for (int k = 0; k < clockCount; k++) {
+			jagged[k] = new double[categoryCount];
+			for (int c = 0; c < categoryCount; c++) {
+				jagged[k][c] = random.nextDouble();
+				flat[k * categoryCount + c] = jagged[k][c];
+			}
+		}
+		clockOfBranch = new int[branchCount];
+		categoryOfBranch = new int[branchCount];
+		branchLength = new double[branchCount];
+		for (int i = 0; i < branchCount; i++) {
+			clockOfBranch[i] = random.nextInt(clockCount);
+			categoryOfBranch[i] = random.nextInt(categoryCount);
+			branchLength[i] = random.nextDouble();
+		}
+		out = new double[branchCount];
+	}
+
+	@Benchmark
+	public void branchRatesJagged(Blackhole blackhole) {
+		for (int i = 0; i < branchCount; i++) {
+			out[i] = jagged[clockOfBranch[i]][categoryOfBranch[i]];
+		}
+		blackhole.consume(out);
+	}
+
+	@Benchmark
+	public void branchRatesFlat(Blackhole blackhole) {
+		for (int i = 0; i < branchCount; i++) {
+			out[i] = flat[clockOfBranch[i] * categoryCount + categoryOfBranch[i]];
+		}
+		blackhole.consume(out);
+	}
+
+	@Benchmark
+	public double computeFactorJagged() {
+		double treeRate = 0, treeTime = 0;
+		for (int i = 0; i < branchCount; i++) {
+			treeRate += jagged[clockOfBranch[i]][categoryOfBranch[i]] * branchLength[i];
+			treeTime += branchLength[i];
+		}
+		return treeTime / treeRate;
+	}
+
+	@Benchmark
+	public double computeFactorFlat() {
+		double treeRate = 0, treeTime = 0;
+		for (int i = 0; i < branchCount; i++) {
+			treeRate += flat[clockOfBranch[i] * categoryCount + categoryOfBranch[i]] * branchLength[i];
+			treeTime += branchLength[i];
+		}
+		return treeTime / treeRate;
+	}
+}